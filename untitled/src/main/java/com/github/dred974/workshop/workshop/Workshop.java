@@ -1,19 +1,33 @@
 package com.github.dred974.workshop.workshop;
 
+import com.github.dred974.workshop.workshop.chunk.ChunkLoadPipeline;
+import com.github.dred974.workshop.workshop.chunk.ChunkSaveQueue;
+import com.github.dred974.workshop.workshop.command.CommandWorkshop;
+import com.github.dred974.workshop.workshop.network.WorkshopNetwork;
+import com.github.dred974.workshop.workshop.profiler.TickProfiler;
+import com.github.dred974.workshop.workshop.region.RegionStore;
+import com.github.dred974.workshop.workshop.world.LightQueue;
 import net.minecraft.block.Block;
 import net.minecraft.item.Item;
 import net.minecraftforge.event.RegistryEvent;
 import net.minecraftforge.fml.common.event.FMLInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPostInitializationEvent;
 import net.minecraftforge.fml.common.event.FMLPreInitializationEvent;
+import net.minecraftforge.fml.common.event.FMLServerAboutToStartEvent;
+import net.minecraftforge.fml.common.event.FMLServerStartingEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppedEvent;
+import net.minecraftforge.fml.common.event.FMLServerStoppingEvent;
 import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
 import net.minecraftforge.fml.common.Mod;
 import net.minecraftforge.fml.common.registry.GameRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
 @Mod(
         modid = Workshop.MOD_ID,
         name = Workshop.MOD_NAME,
-        version = Workshop.VERSION
+        version = Workshop.VERSION,
+        acceptableRemoteVersions = "*"
 )
 public class Workshop {
 
@@ -21,6 +35,8 @@ public class Workshop {
     public static final String MOD_NAME = "Workshop";
     public static final String VERSION = "1.0-SNAPSHOT";
 
+    public static final Logger LOGGER = LogManager.getLogger(MOD_NAME);
+
     /** This is the instance of your mod as created by Forge. It will never be null. */
     @Mod.Instance(MOD_ID)
     public static Workshop INSTANCE;
@@ -31,7 +47,7 @@ public class Workshop {
      */
     @Mod.EventHandler
     public void preinit(FMLPreInitializationEvent event) {
-
+        WorkshopNetwork.init();
     }
 
     /**
@@ -49,4 +65,41 @@ public class Workshop {
     public void postinit(FMLPostInitializationEvent event) {
 
     }
+
+    /**
+     * Fired before the worlds are loaded. Start the worker pools used by the server side optimizations here
+     */
+    @Mod.EventHandler
+    public void serverAboutToStart(FMLServerAboutToStartEvent event) {
+        ChunkLoadPipeline.start();
+        ChunkSaveQueue.start();
+        TickProfiler.start();
+    }
+
+    /**
+     * Fired once the worlds are loaded. Register server commands here
+     */
+    @Mod.EventHandler
+    public void serverStarting(FMLServerStartingEvent event) {
+        event.registerServerCommand(new CommandWorkshop());
+    }
+
+    /**
+     * Fired when the server begins shutting down, before the worlds are saved
+     */
+    @Mod.EventHandler
+    public void serverStopping(FMLServerStoppingEvent event) {
+        ChunkLoadPipeline.stop();
+        TickProfiler.stop();
+        LightQueue.flushAll();
+    }
+
+    /**
+     * Fired once the worlds are saved and the server is fully stopped. Finish pending writes and release file handles here
+     */
+    @Mod.EventHandler
+    public void serverStopped(FMLServerStoppedEvent event) {
+        ChunkSaveQueue.stop();
+        RegionStore.closeAll();
+    }
 }
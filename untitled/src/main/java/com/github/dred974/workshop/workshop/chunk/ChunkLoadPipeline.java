@@ -0,0 +1,417 @@
+package com.github.dred974.workshop.workshop.chunk;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.entity.living.EnderTeleportEvent;
+import net.minecraftforge.event.world.ChunkDataEvent;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.Queue;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prefetches chunks in front of moving players.
+ * <p>
+ * Stages: a bounded worker pool reads the region data, decompresses it and builds a detached {@link Chunk}; the main
+ * thread then publishes ready chunks into the world at the end of the tick, within a per-tick count and time budget.
+ * When vanilla asks the {@link WorkshopChunkLoader} for a chunk the pipeline is working on, the decoded chunk is handed
+ * over instead of being read a second time.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class ChunkLoadPipeline {
+
+    /** Returned by {@link #claim} when the chunk has already been put into the world by the pipeline. */
+    static final Object[] PUBLISHED = new Object[0];
+
+    private static final int QUEUED = 0;
+    private static final int LOADING = 1;
+    private static final int READY = 2;
+    private static final int CLAIMED = 3;
+    private static final int PUBLISHED_STATE = 4;
+    private static final int DROPPED = 5;
+
+    /** Blocks a player moves in a tick beyond which it is taken as a teleport rather than movement. */
+    private static final double TELEPORT_DISTANCE = 32;
+
+    private static volatile ChunkLoadPipeline instance;
+
+    private final ThreadPoolExecutor workers;
+    private final Map<WorldServer, Map<Long, PendingLoad>> loads = new ConcurrentHashMap<>();
+    private final Queue<PendingLoad> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Map<EntityPlayer, double[]> lastPositions = new WeakHashMap<>();
+
+    private final AtomicLong loaded = new AtomicLong();
+    private final AtomicLong claimed = new AtomicLong();
+    private final AtomicLong stolen = new AtomicLong();
+    private long published;
+    private long expired;
+    private long publishNanos;
+    private int ticks;
+    private long lastLoaded;
+    private double loadedPerSecond;
+    private double publishMillisPerTick;
+
+    private ChunkLoadPipeline(int threads, int capacity) {
+        this.workers = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(capacity),
+                new ThreadFactoryBuilder().setNameFormat("Workshop Chunk Loader #%d").setDaemon(true).build());
+    }
+
+    public static void start() {
+        WorkshopConfig.ChunkLoading config = WorkshopConfig.chunkLoading;
+        instance = new ChunkLoadPipeline(config.workerThreads, config.maxQueuedLoads);
+    }
+
+    public static void stop() {
+        ChunkLoadPipeline pipeline = instance;
+        instance = null;
+        if (pipeline != null) {
+            pipeline.workers.shutdownNow();
+            pipeline.loads.clear();
+            pipeline.ready.clear();
+        }
+    }
+
+    @Nullable
+    public static ChunkLoadPipeline get() {
+        return instance;
+    }
+
+    /**
+     * Hands a chunk decoded by the pipeline over to the caller, waiting for it if a worker is reading it. Returns null
+     * if the pipeline knows nothing about the chunk or no worker started on it yet, in which case the load is taken
+     * back and the caller reads the chunk itself, or {@link #PUBLISHED} if it is already in the world.
+     */
+    @Nullable
+    static Object[] claim(WorldServer world, int x, int z) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline == null) {
+            return null;
+        }
+        Map<Long, PendingLoad> worldLoads = pipeline.loads.get(world);
+        if (worldLoads == null) {
+            return null;
+        }
+        long key = ChunkPos.asLong(x, z);
+        PendingLoad load = worldLoads.get(key);
+        if (load == null) {
+            return null;
+        }
+        if (load.state.compareAndSet(QUEUED, DROPPED)) {
+            // Still behind other loads in the queue, reading it here is faster than waiting for its turn
+            worldLoads.remove(key, load);
+            pipeline.pending.decrementAndGet();
+            pipeline.stolen.incrementAndGet();
+            return null;
+        }
+        if (load.state.get() == LOADING) {
+            try {
+                load.done.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        if (load.state.compareAndSet(READY, CLAIMED)) {
+            worldLoads.remove(key, load);
+            pipeline.pending.decrementAndGet();
+            pipeline.claimed.incrementAndGet();
+            return load.data;
+        }
+        return load.state.get() == PUBLISHED_STATE ? PUBLISHED : null;
+    }
+
+    /** Queues a chunk for loading unless it is loaded, already queued, or the queue is full. */
+    public boolean submit(WorldServer world, int x, int z) {
+        ChunkProviderServer provider = world.getChunkProvider();
+        if (!(provider.chunkLoader instanceof WorkshopChunkLoader)) {
+            return false;
+        }
+        long key = ChunkPos.asLong(x, z);
+        if (provider.loadedChunks.containsKey(key) || pending.get() >= WorkshopConfig.chunkLoading.maxQueuedLoads) {
+            return false;
+        }
+        Map<Long, PendingLoad> worldLoads = loads.computeIfAbsent(world, w -> new ConcurrentHashMap<>());
+        PendingLoad load = new PendingLoad(world, (WorkshopChunkLoader) provider.chunkLoader, x, z);
+        if (worldLoads.putIfAbsent(key, load) != null) {
+            return false;
+        }
+        pending.incrementAndGet();
+        try {
+            workers.execute(() -> read(load));
+        } catch (RejectedExecutionException e) {
+            drop(load);
+            return false;
+        }
+        return true;
+    }
+
+    private void read(PendingLoad load) {
+        if (!load.state.compareAndSet(QUEUED, LOADING)) {
+            // Taken back or dropped while queued
+            load.done.countDown();
+            return;
+        }
+        try {
+            Object[] data = load.loader.isChunkGeneratedAt(load.x, load.z) ? load.loader.loadDetached(load.world, load.x, load.z) : null;
+            load.data = data;
+            if (data != null && load.state.compareAndSet(LOADING, READY)) {
+                loaded.incrementAndGet();
+                ready.add(load);
+            } else {
+                drop(load);
+            }
+        } catch (Exception e) {
+            Workshop.LOGGER.warn("Failed to prefetch chunk [{}, {}] in dimension {}", load.x, load.z, load.world.provider.getDimension(), e);
+            drop(load);
+        } finally {
+            load.done.countDown();
+        }
+    }
+
+    private void drop(PendingLoad load) {
+        if (load.state.compareAndSet(QUEUED, DROPPED) || load.state.compareAndSet(LOADING, DROPPED) || load.state.compareAndSet(READY, DROPPED)) {
+            Map<Long, PendingLoad> worldLoads = loads.get(load.world);
+            if (worldLoads != null) {
+                worldLoads.remove(load.key, load);
+            }
+            pending.decrementAndGet();
+        }
+    }
+
+    private void prefetch(WorldServer world) {
+        WorkshopConfig.ChunkLoading config = WorkshopConfig.chunkLoading;
+        int view = world.getMinecraftServer().getPlayerList().getViewDistance();
+        for (EntityPlayer player : world.playerEntities) {
+            double[] last = lastPositions.put(player, new double[]{player.posX, player.posZ});
+            if (last == null) {
+                continue;
+            }
+            double vx = player.posX - last[0];
+            double vz = player.posZ - last[1];
+            double speed = Math.sqrt(vx * vx + vz * vz);
+            // Teleports not reported by an event show up as a jump, the next tick measures from the new position
+            if (speed < config.minimumSpeed || speed > TELEPORT_DISTANCE) {
+                continue;
+            }
+            if (speed > config.maximumSpeed) {
+                vx *= config.maximumSpeed / speed;
+                vz *= config.maximumSpeed / speed;
+            }
+            int playerX = MathHelper.floor(player.posX) >> 4;
+            int playerZ = MathHelper.floor(player.posZ) >> 4;
+            int aheadX = MathHelper.floor(player.posX + vx * config.lookaheadTicks) >> 4;
+            int aheadZ = MathHelper.floor(player.posZ + vz * config.lookaheadTicks) >> 4;
+            for (int x = aheadX - view; x <= aheadX + view; x++) {
+                for (int z = aheadZ - view; z <= aheadZ + view; z++) {
+                    // Chunks in the current view area are already being loaded by the player chunk map
+                    if (Math.abs(x - playerX) > view || Math.abs(z - playerZ) > view) {
+                        submit(world, x, z);
+                    }
+                }
+            }
+        }
+    }
+
+    private void publishReady() {
+        WorkshopConfig.ChunkLoading config = WorkshopConfig.chunkLoading;
+        long start = System.nanoTime();
+        long deadline = start + (long) (config.publishBudgetMillis * 1_000_000L);
+        long expiry = TimeUnit.SECONDS.toNanos(config.readyExpirySeconds);
+        int budget = config.publishBudgetPerTick;
+        PendingLoad load;
+        while (budget > 0 && System.nanoTime() < deadline && (load = ready.poll()) != null) {
+            if (start - load.createdAt > expiry) {
+                if (load.state.get() == READY) {
+                    drop(load);
+                    expired++;
+                }
+            } else if (load.state.compareAndSet(READY, PUBLISHED_STATE)) {
+                pending.decrementAndGet();
+                if (publish(load)) {
+                    published++;
+                    budget--;
+                }
+            }
+        }
+        publishNanos += System.nanoTime() - start;
+
+        if (++ticks % 20 == 0) {
+            long total = loaded.get();
+            loadedPerSecond = total - lastLoaded;
+            lastLoaded = total;
+            publishMillisPerTick = publishNanos / 20 / 1_000_000.0;
+            publishNanos = 0;
+        }
+    }
+
+    /** Puts a detached chunk into the world, mirroring what Forge's ChunkIOProvider does on the main thread. */
+    private boolean publish(PendingLoad load) {
+        WorldServer world = load.world;
+        ChunkProviderServer provider = world.getChunkProvider();
+        if (provider.loadedChunks.containsKey(load.key)) {
+            removeLoad(load);
+            return false;
+        }
+        Chunk chunk = (Chunk) load.data[0];
+        NBTTagCompound nbt = (NBTTagCompound) load.data[1];
+        load.loader.loadEntities(world, nbt.getCompoundTag("Level"), chunk);
+        MinecraftForge.EVENT_BUS.post(new ChunkDataEvent.Load(chunk, nbt));
+        chunk.setLastSaveTime(world.getTotalWorldTime());
+        provider.chunkGenerator.recreateStructures(chunk, chunk.x, chunk.z);
+        provider.loadedChunks.put(load.key, chunk);
+        chunk.onLoad();
+        chunk.populate(provider, provider.chunkGenerator);
+        // Prefetched chunks nobody watches are queued for unload by the next autosave, like any other stray chunk
+        return true;
+    }
+
+    private void removeLoad(PendingLoad load) {
+        Map<Long, PendingLoad> worldLoads = loads.get(load.world);
+        if (worldLoads != null) {
+            worldLoads.remove(load.key, load);
+        }
+    }
+
+    private void onChunkLoaded(World world, Chunk chunk) {
+        Map<Long, PendingLoad> worldLoads = loads.get(world);
+        PendingLoad load = worldLoads == null ? null : worldLoads.get(ChunkPos.asLong(chunk.x, chunk.z));
+        if (load != null && load.state.get() != PUBLISHED_STATE) {
+            // Loaded through another path, whatever we read may now be stale
+            drop(load);
+        }
+    }
+
+    private void onChunkUnloaded(World world, Chunk chunk) {
+        Map<Long, PendingLoad> worldLoads = loads.get(world);
+        if (worldLoads != null) {
+            long key = ChunkPos.asLong(chunk.x, chunk.z);
+            PendingLoad load = worldLoads.get(key);
+            if (load != null && load.state.get() == PUBLISHED_STATE) {
+                worldLoads.remove(key, load);
+            }
+        }
+    }
+
+    public String describe() {
+        return String.format("%d queued, %d loaded (%.0f/s), %d published (%.2f ms/tick), %d handed to vanilla, %d read by vanilla, %d expired",
+                pending.get(), loaded.get(), loadedPerSecond, published, publishMillisPerTick, claimed.get(), stolen.get(), expired);
+    }
+
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null && event.phase == TickEvent.Phase.END && event.world instanceof WorldServer && WorkshopConfig.chunkLoading.enabled) {
+            pipeline.prefetch((WorldServer) event.world);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerRespawn(PlayerEvent.PlayerRespawnEvent event) {
+        forgetPosition(event.player);
+    }
+
+    @SubscribeEvent
+    public static void onPlayerChangedDimension(PlayerEvent.PlayerChangedDimensionEvent event) {
+        forgetPosition(event.player);
+    }
+
+    @SubscribeEvent
+    public static void onEnderTeleport(EnderTeleportEvent event) {
+        if (event.getEntityLiving() instanceof EntityPlayer) {
+            forgetPosition((EntityPlayer) event.getEntityLiving());
+        }
+    }
+
+    /** The next tick records the player's new position instead of measuring a velocity from the old one. */
+    private static void forgetPosition(EntityPlayer player) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null && !player.world.isRemote) {
+            pipeline.lastPositions.remove(player);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null && event.phase == TickEvent.Phase.END) {
+            pipeline.publishReady();
+        }
+    }
+
+    @SubscribeEvent
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null && !event.getWorld().isRemote) {
+            pipeline.onChunkLoaded(event.getWorld(), event.getChunk());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null && !event.getWorld().isRemote) {
+            pipeline.onChunkUnloaded(event.getWorld(), event.getChunk());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        ChunkLoadPipeline pipeline = instance;
+        if (pipeline != null) {
+            Map<Long, PendingLoad> worldLoads = pipeline.loads.remove(event.getWorld());
+            if (worldLoads != null) {
+                for (PendingLoad load : worldLoads.values()) {
+                    pipeline.drop(load);
+                }
+            }
+        }
+    }
+
+    private static final class PendingLoad {
+
+        final WorldServer world;
+        final WorkshopChunkLoader loader;
+        final int x;
+        final int z;
+        final long key;
+        final long createdAt = System.nanoTime();
+        final AtomicInteger state = new AtomicInteger(QUEUED);
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Object[] data;
+
+        PendingLoad(WorldServer world, WorkshopChunkLoader loader, int x, int z) {
+            this.world = world;
+            this.loader = loader;
+            this.x = x;
+            this.z = z;
+            this.key = ChunkPos.asLong(x, z);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package com.github.dred974.workshop.workshop.chunk;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.minecraft.util.math.ChunkPos;
+
+import javax.annotation.Nullable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes saved chunks to disk, replacing vanilla's single ThreadedFileIOBase thread for Workshop chunk loaders.
+ * <p>
+ * Writes are spread over single threaded shards keyed by save directory and region, so every region (and thus every
+ * chunk) is always written by the same thread and in order, while regions of different dimensions or far apart are
+ * written in parallel. Only the chunk position is queued: the data written is whatever the loader holds for the chunk
+ * when its turn comes, so repeated saves of a chunk coalesce into one write. Once too many chunks are queued, the
+ * thread saving chunks waits for the writers to catch up.
+ */
+public final class ChunkSaveQueue {
+
+    private static final long MAX_STALL_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+    private static volatile ChunkSaveQueue instance;
+
+    private final ThreadPoolExecutor[] shards;
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+    private final AtomicLong stalls = new AtomicLong();
+
+    private ChunkSaveQueue(int threads) {
+        this.shards = new ThreadPoolExecutor[threads];
+        for (int i = 0; i < threads; i++) {
+            shards[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactoryBuilder().setNameFormat("Workshop Chunk Writer #" + i).setDaemon(true).build());
+        }
+    }
+
+    public static void start() {
+        instance = new ChunkSaveQueue(WorkshopConfig.chunkSaving.writerThreads);
+    }
+
+    /** Stops accepting chunks and waits for every queued write to complete. */
+    public static void stop() {
+        ChunkSaveQueue queue = instance;
+        instance = null;
+        if (queue == null) {
+            return;
+        }
+        for (ThreadPoolExecutor shard : queue.shards) {
+            shard.shutdown();
+        }
+        long start = System.nanoTime();
+        for (ThreadPoolExecutor shard : queue.shards) {
+            try {
+                while (!shard.awaitTermination(5, TimeUnit.SECONDS)) {
+                    Workshop.LOGGER.info("Waiting for {} chunk saves to be written ({}s)", queue.queued.get(),
+                            TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                Workshop.LOGGER.warn("Interrupted while waiting for {} chunk saves to be written", queue.queued.get());
+                return;
+            }
+        }
+    }
+
+    @Nullable
+    static ChunkSaveQueue get() {
+        return instance;
+    }
+
+    /**
+     * Queues the write of a chunk held by the loader. Returns false if the queue is shutting down, in which case the
+     * caller has to write the chunk some other way.
+     */
+    boolean submit(WorkshopChunkLoader loader, ChunkPos pos) {
+        awaitCapacity();
+        return execute(loader, pos);
+    }
+
+    /**
+     * Queues the write of a chunk again from a writer thread, without waiting for capacity since the writer could be
+     * waiting on its own shard. Returns false if the queue is shutting down.
+     */
+    boolean resubmit(WorkshopChunkLoader loader, ChunkPos pos) {
+        return execute(loader, pos);
+    }
+
+    private boolean execute(WorkshopChunkLoader loader, ChunkPos pos) {
+        queued.incrementAndGet();
+        try {
+            shard(loader, pos).execute(() -> {
+                try {
+                    loader.writeQueued(pos);
+                    written.incrementAndGet();
+                } finally {
+                    queued.decrementAndGet();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            queued.decrementAndGet();
+            return false;
+        }
+    }
+
+    void onCoalesced() {
+        coalesced.incrementAndGet();
+    }
+
+    private void awaitCapacity() {
+        int limit = WorkshopConfig.chunkSaving.maxQueuedSaves;
+        if (queued.get() < limit) {
+            return;
+        }
+        stalls.incrementAndGet();
+        long start = System.nanoTime();
+        while (queued.get() >= limit && System.nanoTime() - start < MAX_STALL_NANOS) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private ThreadPoolExecutor shard(WorkshopChunkLoader loader, ChunkPos pos) {
+        int hash = loader.chunkSaveLocation.hashCode();
+        hash = hash * 31 + (pos.x >> 5);
+        hash = hash * 31 + (pos.z >> 5);
+        hash ^= hash >>> 16;
+        return shards[Math.floorMod(hash * 0x9E3779B9, shards.length)];
+    }
+
+    public String describe() {
+        return String.format("%d queued on %d writers, %d written, %d coalesced, %d stalls",
+                queued.get(), shards.length, written.get(), coalesced.get(), stalls.get());
+    }
+}
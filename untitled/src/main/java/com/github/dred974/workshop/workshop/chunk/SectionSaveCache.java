@@ -0,0 +1,142 @@
+package com.github.dred974.workshop.workshop.chunk;
+
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.world.SectionVersions;
+import com.github.dred974.workshop.workshop.world.TrackedBlockStateContainer;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.BlockStateContainer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.NibbleArray;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Keeps the serialized form of every chunk section between saves, so a chunk save only re-encodes the sections that
+ * changed since the previous save. Main thread only.
+ * <p>
+ * The first save of a section gives it a {@link TrackedBlockStateContainer} and {@link TrackedNibbleArray}s counting
+ * their writes, so changes are seen whichever way they are made, and its {@link SectionVersions version} must not
+ * have moved either. Sections that cannot be tracked are always re-encoded. Every {@code fullSaveInterval}-th save of
+ * a chunk, and the save done when a chunk unloads, re-encode every section anyway.
+ */
+final class SectionSaveCache {
+
+    private static final Map<Chunk, Entry> entries = new WeakHashMap<>();
+    private static long reused;
+    private static long written;
+
+    private SectionSaveCache() {
+    }
+
+    static NBTTagList writeSections(World world, Chunk chunk) {
+        boolean skyLight = world.provider.hasSkyLight();
+        SectionVersions versions = SectionVersions.get(world);
+        WorkshopConfig.ChunkSaving config = WorkshopConfig.chunkSaving;
+        Entry entry = null;
+        boolean full = true;
+        if (config.incremental && versions != null && chunk.isPopulated()) {
+            entry = entries.computeIfAbsent(chunk, c -> new Entry());
+            full = ++entry.saves % config.fullSaveInterval == 0 || chunk.unloadQueued;
+        }
+
+        NBTTagList sections = new NBTTagList();
+        ExtendedBlockStorage[] storages = chunk.getBlockStorageArray();
+        for (int i = 0; i < storages.length; i++) {
+            ExtendedBlockStorage storage = storages[i];
+            if (storage == Chunk.NULL_BLOCK_STORAGE) {
+                continue;
+            }
+            if (entry == null) {
+                sections.appendTag(writeSection(storage, skyLight));
+                written++;
+                continue;
+            }
+            int version = versions.getVersion(chunk.x, i, chunk.z);
+            boolean tracked = track(storage);
+            int changes = tracked ? changes(storage) : 0;
+            if (full || !tracked || entry.storages[i] != storage || entry.versions[i] != version || entry.tags[i] == null
+                    || entry.containers[i] != storage.getData() || entry.blockLights[i] != storage.getBlockLight()
+                    || entry.skyLights[i] != storage.getSkyLight() || entry.changes[i] != changes) {
+                entry.storages[i] = storage;
+                entry.versions[i] = version;
+                entry.containers[i] = storage.getData();
+                entry.blockLights[i] = storage.getBlockLight();
+                entry.skyLights[i] = storage.getSkyLight();
+                entry.changes[i] = changes;
+                entry.tags[i] = writeSection(storage, skyLight);
+                written++;
+            } else {
+                reused++;
+            }
+            // Cached tags are shared between saves and must never be modified
+            sections.appendTag(entry.tags[i]);
+        }
+        return sections;
+    }
+
+    /** Makes the section count its writes, returns false if it cannot. */
+    private static boolean track(ExtendedBlockStorage storage) {
+        if (TrackedBlockStateContainer.of(storage) == null) {
+            return false;
+        }
+        if (!(storage.getBlockLight() instanceof TrackedNibbleArray)) {
+            storage.setBlockLight(new TrackedNibbleArray(storage.getBlockLight()));
+        }
+        if (storage.getSkyLight() != null && !(storage.getSkyLight() instanceof TrackedNibbleArray)) {
+            storage.setSkyLight(new TrackedNibbleArray(storage.getSkyLight()));
+        }
+        return true;
+    }
+
+    /** Total writes of a tracked section. Only grows as long as its arrays are the same. */
+    private static int changes(ExtendedBlockStorage storage) {
+        int changes = ((TrackedBlockStateContainer) storage.getData()).getChanges()
+                + ((TrackedNibbleArray) storage.getBlockLight()).getChanges();
+        if (storage.getSkyLight() != null) {
+            changes += ((TrackedNibbleArray) storage.getSkyLight()).getChanges();
+        }
+        return changes;
+    }
+
+    /** Same layout as vanilla's AnvilChunkLoader. */
+    private static NBTTagCompound writeSection(ExtendedBlockStorage storage, boolean skyLight) {
+        NBTTagCompound tag = new NBTTagCompound();
+        tag.setByte("Y", (byte) (storage.getYLocation() >> 4 & 255));
+        byte[] blocks = new byte[4096];
+        NibbleArray data = new NibbleArray();
+        NibbleArray add = storage.getData().getDataForNBT(blocks, data);
+        tag.setByteArray("Blocks", blocks);
+        tag.setByteArray("Data", data.getData());
+        if (add != null) {
+            tag.setByteArray("Add", add.getData());
+        }
+        tag.setByteArray("BlockLight", storage.getBlockLight().getData());
+        if (skyLight) {
+            tag.setByteArray("SkyLight", storage.getSkyLight().getData());
+        } else {
+            tag.setByteArray("SkyLight", new byte[storage.getBlockLight().getData().length]);
+        }
+        return tag;
+    }
+
+    static String describe() {
+        long total = reused + written;
+        return String.format("%d sections written, %d reused (%.1f%%)", written, reused, total == 0 ? 0 : reused * 100.0 / total);
+    }
+
+    private static final class Entry {
+
+        final ExtendedBlockStorage[] storages = new ExtendedBlockStorage[16];
+        final int[] versions = new int[16];
+        final BlockStateContainer[] containers = new BlockStateContainer[16];
+        final NibbleArray[] blockLights = new NibbleArray[16];
+        final NibbleArray[] skyLights = new NibbleArray[16];
+        final int[] changes = new int[16];
+        final NBTTagCompound[] tags = new NBTTagCompound[16];
+        int saves;
+    }
+}
@@ -0,0 +1,25 @@
+package com.github.dred974.workshop.workshop.chunk;
+
+import com.github.dred974.workshop.workshop.world.TrackedBlockStateContainer;
+import net.minecraft.world.chunk.NibbleArray;
+
+/** Light array of a chunk section counting its writes, see {@link TrackedBlockStateContainer}. */
+final class TrackedNibbleArray extends NibbleArray {
+
+    private int changes;
+
+    /** Shares the data of the given array. */
+    TrackedNibbleArray(NibbleArray array) {
+        super(array.getData());
+    }
+
+    @Override
+    public void set(int x, int y, int z, int value) {
+        super.set(x, y, z, value);
+        changes++;
+    }
+
+    int getChanges() {
+        return changes;
+    }
+}
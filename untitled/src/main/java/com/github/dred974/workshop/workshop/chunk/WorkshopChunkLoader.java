@@ -0,0 +1,327 @@
+package com.github.dred974.workshop.workshop.chunk;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.region.ChunkCompression;
+import com.github.dred974.workshop.workshop.region.RegionStore;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import com.github.dred974.workshop.workshop.world.TickWheel;
+import net.minecraft.block.Block;
+import net.minecraft.entity.Entity;
+import net.minecraft.nbt.CompressedStreamTools;
+import net.minecraft.nbt.NBTTagCompound;
+import net.minecraft.nbt.NBTTagList;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.datafix.DataFixer;
+import net.minecraft.util.datafix.FixTypes;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.MinecraftException;
+import net.minecraft.world.NextTickListEntry;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.AnvilChunkLoader;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraft.world.storage.ThreadedFileIOBase;
+import net.minecraftforge.common.ForgeChunkManager;
+import net.minecraftforge.common.MinecraftForge;
+import net.minecraftforge.event.world.ChunkDataEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Chunk loader installed in place of the vanilla {@link AnvilChunkLoader} of every server world.
+ * Region files are accessed through the {@link RegionStore} so the save thread and chunk readers do not contend on a
+ * single monitor per region.
+ * Loads requested by vanilla (sync or through the ChunkIOExecutor) first try to take over a chunk already decoded by
+ * the {@link ChunkLoadPipeline}, so a prefetched chunk is never read twice.
+ * Saves reuse the serialized sections kept by the {@link SectionSaveCache} for sections that did not change.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class WorkshopChunkLoader extends AnvilChunkLoader {
+
+    private final DataFixer dataFixer;
+    /** Chunks waiting to be written. An entry stays here until written, so loads always see the latest data. */
+    private final Map<ChunkPos, NBTTagCompound> pendingSaves = new ConcurrentHashMap<>();
+    private final Set<ChunkPos> chunksBeingSaved = ConcurrentHashMap.newKeySet();
+    /** Chunks with a write pending in the {@link ChunkSaveQueue}. */
+    private final Set<ChunkPos> queuedSaves = ConcurrentHashMap.newKeySet();
+
+    public WorkshopChunkLoader(File chunkSaveLocation, DataFixer dataFixer) {
+        super(chunkSaveLocation, dataFixer);
+        this.dataFixer = dataFixer;
+    }
+
+    @Override
+    @Nullable
+    public Object[] loadChunk__Async(World world, int x, int z) throws IOException {
+        if (world instanceof WorldServer) {
+            Object[] claimed = ChunkLoadPipeline.claim((WorldServer) world, x, z);
+            if (claimed == ChunkLoadPipeline.PUBLISHED) {
+                // The pipeline already put the chunk in the world, let vanilla pick it up from loadedChunks
+                return null;
+            }
+            if (claimed != null) {
+                return claimed;
+            }
+        }
+        return loadDetached(world, x, z);
+    }
+
+    /** Reads and decodes a chunk without touching the world. Safe to call from worker threads. */
+    @Nullable
+    Object[] loadDetached(World world, int x, int z) throws IOException {
+        NBTTagCompound compound = pendingSaves.get(new ChunkPos(x, z));
+        if (compound == null) {
+            DataInputStream in = RegionStore.getChunkInputStream(chunkSaveLocation, x, z);
+            if (in == null) {
+                return null;
+            }
+            try {
+                compound = dataFixer.process(FixTypes.CHUNK, CompressedStreamTools.read(in));
+            } finally {
+                in.close();
+            }
+        }
+        return checkedReadChunkFromNBT__Async(world, x, z, compound);
+    }
+
+    /** Same as Forge's saveChunk, with sections serialized through the {@link SectionSaveCache}. */
+    @Override
+    public void saveChunk(World world, Chunk chunk) throws MinecraftException, IOException {
+        world.checkSessionLock();
+        try {
+            NBTTagCompound compound = new NBTTagCompound();
+            NBTTagCompound level = new NBTTagCompound();
+            compound.setTag("Level", level);
+            compound.setInteger("DataVersion", 1343);
+            FMLCommonHandler.instance().getDataFixer().writeVersionData(compound);
+            writeChunkToNBT(chunk, world, level);
+            ForgeChunkManager.storeChunkNBT(chunk, level);
+            MinecraftForge.EVENT_BUS.post(new ChunkDataEvent.Save(chunk, compound));
+            addChunkToPending(chunk.getPos(), compound);
+        } catch (Exception e) {
+            Workshop.LOGGER.error("Failed to save chunk [{}, {}]", chunk.x, chunk.z, e);
+        }
+    }
+
+    private static void writeChunkToNBT(Chunk chunk, World world, NBTTagCompound compound) {
+        compound.setInteger("xPos", chunk.x);
+        compound.setInteger("zPos", chunk.z);
+        compound.setLong("LastUpdate", world.getTotalWorldTime());
+        compound.setIntArray("HeightMap", chunk.getHeightMap());
+        compound.setBoolean("TerrainPopulated", chunk.isTerrainPopulated());
+        compound.setBoolean("LightPopulated", chunk.isLightPopulated());
+        compound.setLong("InhabitedTime", chunk.getInhabitedTime());
+        compound.setTag("Sections", SectionSaveCache.writeSections(world, chunk));
+        compound.setByteArray("Biomes", chunk.getBiomeArray());
+
+        chunk.setHasEntities(false);
+        NBTTagList entities = new NBTTagList();
+        for (int i = 0; i < chunk.getEntityLists().length; i++) {
+            for (Entity entity : chunk.getEntityLists()[i]) {
+                NBTTagCompound tag = new NBTTagCompound();
+                try {
+                    if (entity.writeToNBTOptional(tag)) {
+                        chunk.setHasEntities(true);
+                        entities.appendTag(tag);
+                    }
+                } catch (Exception e) {
+                    Workshop.LOGGER.error("An entity of type {} failed to save, it will not persist", entity.getClass().getName(), e);
+                }
+            }
+        }
+        compound.setTag("Entities", entities);
+
+        NBTTagList tileEntities = new NBTTagList();
+        for (TileEntity tileEntity : chunk.getTileEntityMap().values()) {
+            try {
+                tileEntities.appendTag(tileEntity.writeToNBT(new NBTTagCompound()));
+            } catch (Exception e) {
+                Workshop.LOGGER.error("A tile entity of type {} failed to save, it will not persist", tileEntity.getClass().getName(), e);
+            }
+        }
+        compound.setTag("TileEntities", tileEntities);
+
+        List<NextTickListEntry> ticks = TickWheel.getPendingBlockUpdates(world, chunk);
+        if (ticks != null) {
+            long time = world.getTotalWorldTime();
+            NBTTagList tileTicks = new NBTTagList();
+            for (NextTickListEntry entry : ticks) {
+                NBTTagCompound tag = new NBTTagCompound();
+                ResourceLocation name = Block.REGISTRY.getNameForObject(entry.getBlock());
+                tag.setString("i", name == null ? "" : name.toString());
+                tag.setInteger("x", entry.position.getX());
+                tag.setInteger("y", entry.position.getY());
+                tag.setInteger("z", entry.position.getZ());
+                tag.setInteger("t", (int) (entry.scheduledTime - time));
+                tag.setInteger("p", entry.priority);
+                tileTicks.appendTag(tag);
+            }
+            compound.setTag("TileTicks", tileTicks);
+        }
+
+        if (chunk.getCapabilities() != null) {
+            try {
+                compound.setTag("ForgeCaps", chunk.getCapabilities().serializeNBT());
+            } catch (Exception e) {
+                Workshop.LOGGER.error("A capability provider has thrown an exception trying to write state, it will not persist", e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isChunkGeneratedAt(int x, int z) {
+        return pendingSaves.containsKey(new ChunkPos(x, z)) || RegionStore.chunkExists(chunkSaveLocation, x, z);
+    }
+
+    @Override
+    protected void addChunkToPending(ChunkPos pos, NBTTagCompound compound) {
+        pendingSaves.put(pos, compound);
+        queueWrite(pos);
+    }
+
+    private void queueWrite(ChunkPos pos) {
+        ChunkSaveQueue queue = ChunkSaveQueue.get();
+        if (queue == null) {
+            // Saves outside of a running server go through vanilla's IO thread
+            ThreadedFileIOBase.getThreadedIOInstance().queueIO(this);
+        } else if (!queuedSaves.add(pos)) {
+            // Already queued, the write will pick up the latest data
+            queue.onCoalesced();
+        } else if (!queue.submit(this, pos)) {
+            queuedSaves.remove(pos);
+            ThreadedFileIOBase.getThreadedIOInstance().queueIO(this);
+        }
+    }
+
+    /** Called by the {@link ChunkSaveQueue} once it is the chunk's turn to be written. */
+    void writeQueued(ChunkPos pos) {
+        // Saves made from now on queue another write
+        queuedSaves.remove(pos);
+        if (!writeChunk(pos) && queuedSaves.add(pos)) {
+            // Another thread is writing the chunk and may have taken older data, write it again once it is done
+            ChunkSaveQueue queue = ChunkSaveQueue.get();
+            if (queue == null || !queue.resubmit(this, pos)) {
+                queuedSaves.remove(pos);
+                ThreadedFileIOBase.getThreadedIOInstance().queueIO(this);
+            }
+        }
+    }
+
+    @Override
+    public boolean writeNextIO() {
+        for (ChunkPos pos : pendingSaves.keySet()) {
+            if (writeChunk(pos)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Writes the latest data of a chunk, returns false if another thread is writing it. */
+    private boolean writeChunk(ChunkPos pos) {
+        // Writers, flush() and the IO thread may all drain the queue, never write the same chunk from two at once
+        if (!chunksBeingSaved.add(pos)) {
+            return false;
+        }
+        try {
+            NBTTagCompound compound = pendingSaves.get(pos);
+            if (compound != null) {
+                try {
+                    writeChunkData(pos, compound);
+                } catch (Exception e) {
+                    Workshop.LOGGER.error("Failed to save chunk [{}, {}]", pos.x, pos.z, e);
+                }
+                pendingSaves.remove(pos, compound);
+            }
+        } finally {
+            chunksBeingSaved.remove(pos);
+        }
+        return true;
+    }
+
+    /** Waits for every pending save of this loader to be written, logging progress when it takes a while. */
+    @Override
+    public void flush() {
+        ChunkSaveQueue queue = ChunkSaveQueue.get();
+        if (queue != null) {
+            for (ChunkPos pos : pendingSaves.keySet()) {
+                if (queuedSaves.add(pos) && !queue.submit(this, pos)) {
+                    queuedSaves.remove(pos);
+                }
+            }
+        }
+        int total = pendingSaves.size();
+        long start = System.nanoTime();
+        long nextReport = start + TimeUnit.SECONDS.toNanos(5);
+        while (!pendingSaves.isEmpty()) {
+            if (queue == null || ChunkSaveQueue.get() != queue) {
+                writeNextIO();
+            } else {
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+            if (System.nanoTime() - nextReport >= 0) {
+                nextReport += TimeUnit.SECONDS.toNanos(5);
+                Workshop.LOGGER.info("Flushing chunks of {}: {}/{} written", chunkSaveLocation, total - Math.min(total, pendingSaves.size()), total);
+            }
+        }
+        if (total > 0) {
+            Workshop.LOGGER.debug("Flushed {} chunks of {} in {} ms", total, chunkSaveLocation,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    @Override
+    public int getPendingSaveCount() {
+        return pendingSaves.size();
+    }
+
+    private void writeChunkData(ChunkPos pos, NBTTagCompound compound) throws IOException {
+        ChunkCompression compression = WorkshopConfig.regions.compression;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(8096);
+        try (DataOutputStream out = compression.openOutput(bytes)) {
+            CompressedStreamTools.write(compound, out);
+        }
+        RegionStore.write(chunkSaveLocation, pos.x, pos.z, bytes.toByteArray(), bytes.size(), compression);
+    }
+
+    public static String describeSaves() {
+        ChunkSaveQueue queue = ChunkSaveQueue.get();
+        return SectionSaveCache.describe() + (queue == null ? "" : ", " + queue.describe());
+    }
+
+    /** Swaps the plain vanilla loader of a server world for ours, leaving loaders installed by other mods alone. */
+    @SubscribeEvent(priority = EventPriority.HIGHEST)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.getWorld();
+        ChunkProviderServer provider = world.getChunkProvider();
+        if (provider.chunkLoader.getClass() == AnvilChunkLoader.class) {
+            AnvilChunkLoader vanilla = (AnvilChunkLoader) provider.chunkLoader;
+            WorkshopChunkLoader loader = new WorkshopChunkLoader(vanilla.chunkSaveLocation, world.getMinecraftServer().getDataFixer());
+            if (!Reflection.setField(ChunkProviderServer.class, provider, loader, "chunkLoader", "field_73247_e")) {
+                Workshop.LOGGER.warn("Could not install the Workshop chunk loader in dimension {}", world.provider.getDimension());
+            }
+        }
+    }
+}
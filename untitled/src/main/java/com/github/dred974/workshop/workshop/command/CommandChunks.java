@@ -0,0 +1,45 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.chunk.ChunkLoadPipeline;
+import com.github.dred974.workshop.workshop.chunk.WorkshopChunkLoader;
+import com.github.dred974.workshop.workshop.world.RandomTicks;
+import com.github.dred974.workshop.workshop.world.TickWheel;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.WorldServer;
+
+/** /workshop chunks: prints the state of the chunk load pipeline, of chunk saving and of block ticks. */
+public class CommandChunks extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "chunks";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop chunks";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        ChunkLoadPipeline pipeline = ChunkLoadPipeline.get();
+        sender.sendMessage(new TextComponentString(pipeline == null ? "Chunk pipeline is not running" : "Chunk pipeline: " + pipeline.describe()));
+        sender.sendMessage(new TextComponentString("Chunk saving: " + WorkshopChunkLoader.describeSaves()));
+        sender.sendMessage(new TextComponentString("Random ticks: " + RandomTicks.describe()));
+        for (WorldServer world : server.worlds) {
+            TickWheel wheel = TickWheel.get(world);
+            if (wheel != null) {
+                sender.sendMessage(new TextComponentString("Dimension " + world.provider.getDimension() + ": " + wheel.describe()));
+            }
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.inventory.TrackedContainer;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/** /workshop containers: prints how many container slots were compared and skipped. */
+public class CommandContainers extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "containers";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop containers";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        sender.sendMessage(new TextComponentString("Slots: " + TrackedContainer.describe()));
+    }
+}
@@ -0,0 +1,40 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.entity.EntityBuckets;
+import com.github.dred974.workshop.workshop.entity.GridEntityTracker;
+import com.github.dred974.workshop.workshop.entity.PathService;
+import com.github.dred974.workshop.workshop.entity.ScheduledAITasks;
+import com.github.dred974.workshop.workshop.world.CollisionQuery;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/** /workshop entities: prints the counters of the entity subsystems and of collision queries. */
+public class CommandEntities extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "entities";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop entities";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        sender.sendMessage(new TextComponentString("Tracker: " + GridEntityTracker.describe()));
+        sender.sendMessage(new TextComponentString("Chunk entity lists: " + EntityBuckets.describe()));
+        sender.sendMessage(new TextComponentString("Collisions: " + CollisionQuery.describe()));
+        sender.sendMessage(new TextComponentString("Paths: " + PathService.describe()));
+        sender.sendMessage(new TextComponentString("AI: " + ScheduledAITasks.describe()));
+    }
+}
@@ -0,0 +1,93 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.profiler.TickProfiler;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/** /workshop lag [seconds|export [seconds]]: prints where the server thread spent its time, or exports the samples. */
+public class CommandLag extends CommandBase {
+
+    private static final int SHOWN_ENTRIES = 5;
+
+    @Override
+    public String getName() {
+        return "lag";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop lag [seconds|export [seconds]]";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        TickProfiler profiler = TickProfiler.get();
+        if (profiler == null) {
+            throw new CommandException("The tick profiler is disabled");
+        }
+        boolean export = args.length > 0 && args[0].equals("export");
+        int secondsArg = export ? 1 : 0;
+        if (args.length > secondsArg + 1) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        int seconds = args.length > secondsArg ? parseInt(args[secondsArg], 1, TickProfiler.WINDOW_SECONDS) : TickProfiler.WINDOW_SECONDS;
+        TickProfiler.Report report = profiler.report(seconds);
+
+        if (export) {
+            File file = new File(server.getFile("workshop"), "lag-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".collapsed");
+            try {
+                report.writeCollapsed(file);
+            } catch (IOException e) {
+                throw new CommandException("Failed to write " + file + ": " + e.getMessage());
+            }
+            sender.sendMessage(new TextComponentString("Wrote " + report.samples + " samples to " + file.getPath()));
+            return;
+        }
+
+        double mspt = report.ticks == 0 ? 0 : report.tickNanos / 1e6 / report.ticks;
+        sender.sendMessage(new TextComponentString(String.format("Last %ds: %d ticks, %.2f ms/tick, %d samples",
+                seconds, report.ticks, mspt, report.samples)));
+        StringBuilder histogram = new StringBuilder("Ticks:");
+        for (int i = 0; i < report.tickHistogram.length; i++) {
+            histogram.append(' ').append(TickProfiler.Report.histogramLabel(i)).append('=').append(report.tickHistogram[i]);
+        }
+        sender.sendMessage(new TextComponentString(histogram.toString()));
+        send(sender, "Types", report.byType, report.samples);
+        send(sender, "Chunks", report.byChunk, report.samples);
+        send(sender, "Mods", report.byMod, report.samples);
+    }
+
+    private static void send(ICommandSender sender, String title, Map<String, int[]> counts, int samples) {
+        sender.sendMessage(new TextComponentString(title + ":"));
+        for (String line : TickProfiler.Report.top(counts, samples, SHOWN_ENTRIES)) {
+            sender.sendMessage(new TextComponentString("  " + line));
+        }
+    }
+
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, @Nullable BlockPos targetPos) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "export");
+        }
+        return Collections.emptyList();
+    }
+}
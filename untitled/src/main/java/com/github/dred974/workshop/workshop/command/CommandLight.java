@@ -0,0 +1,32 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.world.LightQueue;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/** /workshop light: prints the state of the batched light queue. */
+public class CommandLight extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "light";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop light";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        sender.sendMessage(new TextComponentString("Light queue: " + LightQueue.describe()));
+    }
+}
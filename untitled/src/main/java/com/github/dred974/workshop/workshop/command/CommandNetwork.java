@@ -0,0 +1,42 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.network.BatchedChannel;
+import com.github.dred974.workshop.workshop.network.CompressionEncoder;
+import com.github.dred974.workshop.workshop.network.FlushBatcher;
+import com.github.dred974.workshop.workshop.network.SectionCacheEncoder;
+import com.github.dred974.workshop.workshop.network.WorkshopPacketBuffer;
+import com.github.dred974.workshop.workshop.world.WorkshopPlayerChunkMap;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+/** /workshop network: prints the counters of the player connection handlers. */
+public class CommandNetwork extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "network";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop network";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        sender.sendMessage(new TextComponentString("Flushes: " + FlushBatcher.describe()));
+        sender.sendMessage(new TextComponentString("Encoding: " + WorkshopPacketBuffer.describe()));
+        sender.sendMessage(new TextComponentString("Compression: " + CompressionEncoder.describe()));
+        sender.sendMessage(new TextComponentString("Section cache: " + SectionCacheEncoder.describe()));
+        sender.sendMessage(new TextComponentString("Block changes: " + WorkshopPlayerChunkMap.describe()));
+        sender.sendMessage(new TextComponentString("Messages: " + BatchedChannel.describe()));
+    }
+}
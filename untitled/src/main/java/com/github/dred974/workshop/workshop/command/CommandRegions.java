@@ -0,0 +1,76 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.region.ChunkCompression;
+import com.github.dred974.workshop.workshop.region.RegionConverter;
+import com.github.dred974.workshop.workshop.region.RegionStore;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
+
+import javax.annotation.Nullable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/** /workshop regions [convert &lt;compression&gt;]: prints the region handle cache counters or converts the save. */
+public class CommandRegions extends CommandBase {
+
+    @Override
+    public String getName() {
+        return "regions";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop regions [convert <gzip|deflate|none|lz4>]";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        if (args.length == 0) {
+            sender.sendMessage(new TextComponentString("Region cache: " + RegionStore.describe()));
+            sender.sendMessage(new TextComponentString("New chunks are saved with " + WorkshopConfig.regions.compression));
+            return;
+        }
+        if (args.length != 2 || !args[0].equals("convert")) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        ChunkCompression target;
+        try {
+            target = ChunkCompression.valueOf(args[1].toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        // Chunks saved from now on use the new compression as well
+        WorkshopConfig.regions.compression = target;
+        ConfigManager.sync(Workshop.MOD_ID, Config.Type.INSTANCE);
+        if (!RegionConverter.start(server, sender, target)) {
+            throw new CommandException("A region conversion is already running");
+        }
+    }
+
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, @Nullable BlockPos targetPos) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "convert");
+        }
+        if (args.length == 2 && args[0].equals("convert")) {
+            return getListOfStringsMatchingLastWord(args, Arrays.asList("gzip", "deflate", "none", "lz4"));
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,100 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.world.TileEntityList;
+import net.minecraft.command.CommandBase;
+import net.minecraft.command.CommandException;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.command.WrongUsageException;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.text.TextComponentString;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/** /workshop tiles [throttle &lt;type&gt; &lt;ticks&gt;]: prints the most common tickable types or changes their tick interval. */
+public class CommandTiles extends CommandBase {
+
+    private static final int SHOWN_TYPES = 8;
+
+    @Override
+    public String getName() {
+        return "tiles";
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop tiles [throttle <type> <ticks>]";
+    }
+
+    @Override
+    public void execute(MinecraftServer server, ICommandSender sender, String[] args) throws CommandException {
+        if (args.length == 0) {
+            for (WorldServer world : server.worlds) {
+                if (!(world.tickableTileEntities instanceof TileEntityList)) {
+                    continue;
+                }
+                List<Map.Entry<String, Integer>> counts = ((TileEntityList) world.tickableTileEntities).countByType();
+                sender.sendMessage(new TextComponentString("Dimension " + world.provider.getDimension() + ": "
+                        + world.tickableTileEntities.size() + " tickable in " + counts.size() + " types"));
+                for (Map.Entry<String, Integer> count : counts.subList(0, Math.min(SHOWN_TYPES, counts.size()))) {
+                    int interval = TileEntityList.getTickInterval(count.getKey());
+                    sender.sendMessage(new TextComponentString("  " + count.getKey() + ": " + count.getValue()
+                            + (interval > 1 ? " (every " + interval + " ticks)" : "")));
+                }
+            }
+            return;
+        }
+        if (args.length != 3 || !args[0].equals("throttle")) {
+            throw new WrongUsageException(getUsage(sender));
+        }
+        String type = args[1];
+        int interval = parseInt(args[2], 1, 1200);
+        List<String> intervals = new ArrayList<>();
+        for (String entry : WorkshopConfig.tileEntities.tickIntervals) {
+            if (!entry.startsWith(type + "=")) {
+                intervals.add(entry);
+            }
+        }
+        if (interval > 1) {
+            intervals.add(type + "=" + interval);
+        }
+        WorkshopConfig.tileEntities.tickIntervals = intervals.toArray(new String[0]);
+        ConfigManager.sync(Workshop.MOD_ID, Config.Type.INSTANCE);
+        sender.sendMessage(new TextComponentString(type + (interval > 1 ? " now ticks every " + interval + " ticks" : " now ticks every tick")));
+    }
+
+    @Override
+    public List<String> getTabCompletions(MinecraftServer server, ICommandSender sender, String[] args, @Nullable BlockPos targetPos) {
+        if (args.length == 1) {
+            return getListOfStringsMatchingLastWord(args, "throttle");
+        }
+        if (args.length == 2 && args[0].equals("throttle")) {
+            Set<String> types = new TreeSet<>();
+            for (WorldServer world : server.worlds) {
+                if (world.tickableTileEntities instanceof TileEntityList) {
+                    for (Map.Entry<String, Integer> count : ((TileEntityList) world.tickableTileEntities).countByType()) {
+                        types.add(count.getKey());
+                    }
+                }
+            }
+            return getListOfStringsMatchingLastWord(args, types);
+        }
+        return Collections.emptyList();
+    }
+}
@@ -0,0 +1,35 @@
+package com.github.dred974.workshop.workshop.command;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import net.minecraft.command.ICommandSender;
+import net.minecraftforge.server.command.CommandTreeBase;
+
+/** Root of the /workshop command, each tuning subsystem registers its own subcommand here. */
+public class CommandWorkshop extends CommandTreeBase {
+
+    public CommandWorkshop() {
+        addSubcommand(new CommandChunks());
+        addSubcommand(new CommandRegions());
+        addSubcommand(new CommandLight());
+        addSubcommand(new CommandTiles());
+        addSubcommand(new CommandLag());
+        addSubcommand(new CommandNetwork());
+        addSubcommand(new CommandEntities());
+        addSubcommand(new CommandContainers());
+    }
+
+    @Override
+    public String getName() {
+        return Workshop.MOD_ID;
+    }
+
+    @Override
+    public int getRequiredPermissionLevel() {
+        return 2;
+    }
+
+    @Override
+    public String getUsage(ICommandSender sender) {
+        return "/workshop <subcommand>";
+    }
+}
@@ -0,0 +1,261 @@
+package com.github.dred974.workshop.workshop.config;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.region.ChunkCompression;
+import net.minecraftforge.common.config.Config;
+import net.minecraftforge.common.config.ConfigManager;
+import net.minecraftforge.fml.client.event.ConfigChangedEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+/** Server tuning options, stored in config/workshop.cfg. */
+@Config(modid = Workshop.MOD_ID)
+public class WorkshopConfig {
+
+    @Config.Comment("Asynchronous chunk loading pipeline")
+    public static final ChunkLoading chunkLoading = new ChunkLoading();
+
+    @Config.Comment("Region file handle cache")
+    public static final Regions regions = new Regions();
+
+    @Config.Comment("Chunk serialization")
+    public static final ChunkSaving chunkSaving = new ChunkSaving();
+
+    @Config.Comment("Batched light updates for bulk block changes")
+    public static final Lighting lighting = new Lighting();
+
+    @Config.Comment("Tile entity ticking")
+    public static final TileEntities tileEntities = new TileEntities();
+
+    @Config.Comment("Random ticking of blocks around players")
+    public static final RandomTicks randomTicks = new RandomTicks();
+
+    @Config.Comment("Path searches of mobs")
+    public static final Pathfinding pathfinding = new Pathfinding();
+
+    @Config.Comment("Evaluation of mob AI tasks")
+    public static final Ai ai = new Ai();
+
+    @Config.Comment("Sampling profiler of the server thread, see /workshop lag")
+    public static final Profiler profiler = new Profiler();
+
+    @Config.Comment("Player connections")
+    public static final Network network = new Network();
+
+    @Config.Comment("Syncing of containers built on Workshop's tracked container")
+    public static final Containers containers = new Containers();
+
+    public static class ChunkLoading {
+
+        @Config.Comment("Prefetch chunks ahead of moving players and decode them off the main thread")
+        public boolean enabled = true;
+
+        @Config.Comment("Number of worker threads reading and decoding chunks (applied on server start)")
+        @Config.RangeInt(min = 1, max = 16)
+        public int workerThreads = 2;
+
+        @Config.Comment("Maximum number of chunk loads queued or waiting to be published")
+        @Config.RangeInt(min = 16, max = 65536)
+        public int maxQueuedLoads = 1024;
+
+        @Config.Comment("Maximum number of prefetched chunks published into the world per tick")
+        @Config.RangeInt(min = 1, max = 1024)
+        public int publishBudgetPerTick = 8;
+
+        @Config.Comment("Maximum main thread time spent publishing prefetched chunks per tick, in milliseconds")
+        @Config.RangeDouble(min = 0.1, max = 50)
+        public double publishBudgetMillis = 5;
+
+        @Config.Comment("How far ahead of a moving player chunks are prefetched, in ticks of travel")
+        @Config.RangeInt(min = 1, max = 400)
+        public int lookaheadTicks = 60;
+
+        @Config.Comment("Players moving slower than this, in blocks per tick, do not trigger prefetching")
+        @Config.RangeDouble(min = 0, max = 10)
+        public double minimumSpeed = 0.5;
+
+        @Config.Comment("Speed used to look ahead of faster players, in blocks per tick, so a burst of speed does not prefetch far away")
+        @Config.RangeDouble(min = 0.5, max = 10)
+        public double maximumSpeed = 2;
+
+        @Config.Comment("Prefetched chunks that could not be published within this many seconds are dropped")
+        @Config.RangeInt(min = 1, max = 600)
+        public int readyExpirySeconds = 30;
+    }
+
+    public static class Regions {
+
+        @Config.Comment("Maximum number of region files kept open at once")
+        @Config.RangeInt(min = 16, max = 65536)
+        public int openHandleBudget = 256;
+
+        @Config.Comment("Region files unused for this many seconds are closed, 0 keeps them open until evicted")
+        @Config.RangeInt(min = 0, max = 86400)
+        public int idleCloseSeconds = 300;
+
+        @Config.Comment({"Compression used for newly saved chunks. Chunks keep the compression they were written with",
+                "until saved again. LZ4 is much cheaper on the save thread but only readable with Workshop installed"})
+        public ChunkCompression compression = ChunkCompression.DEFLATE;
+    }
+
+    public static class ChunkSaving {
+
+        @Config.Comment("Reuse the serialized form of chunk sections that did not change since the previous save")
+        public boolean incremental = true;
+
+        @Config.Comment("Every n-th save of a chunk re-encodes all of its sections, to catch changes made behind the world's back")
+        @Config.RangeInt(min = 1, max = 1000)
+        public int fullSaveInterval = 10;
+
+        @Config.Comment("Number of threads writing saved chunks to disk, each owning a share of the regions (applied on server start)")
+        @Config.RangeInt(min = 1, max = 16)
+        public int writerThreads = 4;
+
+        @Config.Comment("Maximum number of chunks waiting to be written before saving waits for the writers to catch up")
+        @Config.RangeInt(min = 64, max = 65536)
+        public int maxQueuedSaves = 4096;
+    }
+
+    public static class Lighting {
+
+        @Config.Comment("Queue the light updates of bulk block changes instead of relighting after every block")
+        public boolean enabled = true;
+
+        @Config.Comment("Maximum main thread time spent relighting queued blocks per tick, in milliseconds")
+        @Config.RangeDouble(min = 0.1, max = 50)
+        public double budgetMillis = 2;
+    }
+
+    public static class TileEntities {
+
+        @Config.Comment({"Tile entity types ticked less often than every tick, as <type>=<ticks>, for example",
+                "minecraft:hopper=2. Changes apply right away"})
+        public String[] tickIntervals = new String[0];
+    }
+
+    public static class RandomTicks {
+
+        @Config.Comment("Only pick among the randomly ticking blocks of each section, with the same odds per block as vanilla")
+        public boolean enabled = true;
+
+        @Config.Comment({"Hand the same mutable position to every random tick instead of a new one each time.",
+                "Only safe if no installed mod keeps the position it is given"})
+        public boolean reuseBlockPos = false;
+    }
+
+    public static class Pathfinding {
+
+        @Config.Comment({"Run mob path searches at the end of the tick within a time budget, and share their result between",
+                "mobs going from and to the same blocks (applied to mobs as they join a world)"})
+        public boolean enabled = true;
+
+        @Config.Comment("Maximum main thread time spent searching paths per tick, in milliseconds")
+        @Config.RangeDouble(min = 0.1, max = 50)
+        public double budgetMillis = 5;
+
+        @Config.Comment("Ticks a found path is handed to mobs asking for the same route before it is searched again")
+        @Config.RangeInt(min = 1, max = 200)
+        public int resultTicks = 20;
+
+        @Config.Comment("Maximum number of searches waiting per world, further requests are refused until the queue drains")
+        @Config.RangeInt(min = 16, max = 65536)
+        public int maxQueuedSearches = 1024;
+    }
+
+    public static class Ai {
+
+        @Config.Comment("Spread and space out the AI task checks of mobs by their distance to players (applied to mobs as they join a world)")
+        public boolean enabled = true;
+
+        @Config.Comment({"Mobs further than this from every player do not run their AI tasks, but still fall and drift in fluids.",
+                "Tamed and ridden mobs are never frozen, 0 keeps every mob active"})
+        @Config.RangeInt(min = 0, max = 512)
+        public int activationRange = 64;
+
+        @Config.Comment({"Mobs within this distance of a player look for new tasks every 3 ticks like vanilla. Further ones look",
+                "less often, down to once every maxEvaluationInterval ticks at the activation range"})
+        @Config.RangeInt(min = 0, max = 512)
+        public int fullRateRange = 24;
+
+        @Config.Comment("Longest time between two looks for new tasks, in ticks")
+        @Config.RangeInt(min = 3, max = 200)
+        public int maxEvaluationInterval = 20;
+    }
+
+    public static class Profiler {
+
+        @Config.Comment("Sample the server thread while it ticks (applied on server start)")
+        public boolean enabled = true;
+
+        @Config.Comment("Time between two samples, in milliseconds. Each sample briefly pauses the server thread")
+        @Config.RangeInt(min = 1, max = 1000)
+        public int sampleIntervalMillis = 20;
+    }
+
+    public static class Network {
+
+        @Config.Comment("Flush the packets sent to a player once per tick instead of after every packet")
+        public boolean batchFlushes = true;
+
+        @Config.Comment("Longest time a packet written outside of the server tick waits for a flush, in milliseconds")
+        @Config.RangeInt(min = 1, max = 1000)
+        public int maxFlushDelayMillis = 20;
+
+        @Config.Comment("Threads compressing packets for all players, 0 keeps vanilla compression on the network threads (applied on login)")
+        @Config.RangeInt(min = 0, max = 16)
+        public int compressionThreads = 2;
+
+        @Config.Comment("Deflate level of compressed packets, from 1 (fastest) to 9 (smallest), -1 is the vanilla default")
+        @Config.RangeInt(min = -1, max = 9)
+        public int compressionLevel = -1;
+
+        @Config.Comment({"Packets up to this size are sent uncompressed to players using less than compressionBandwidthKBps.",
+                "Never lower than the server's network-compression-threshold"})
+        @Config.RangeInt(min = 0, max = 65536)
+        public int adaptiveThreshold = 1024;
+
+        @Config.Comment("Bandwidth per player under which the adaptive threshold applies, in KiB per second, 0 disables it")
+        @Config.RangeInt(min = 0, max = 1048576)
+        public int compressionBandwidthKBps = 64;
+
+        @Config.Comment({"Chunk sections remembered by clients with Workshop installed, so unchanged sections are not sent again.",
+                "Each entry costs the client about 8 KiB, 0 disables the cache (applied on login)"})
+        @Config.RangeInt(min = 0, max = 65536)
+        public int sectionCacheEntries = 2048;
+
+        @Config.Comment("Sections with at least this many changed blocks in a tick are resent whole instead of block by block")
+        @Config.RangeInt(min = 2, max = 4096)
+        public int sectionResendThreshold = 1024;
+
+        @Config.Comment("Ticks block changes are held to be sent together with later changes to the same chunk, 0 sends them every tick")
+        @Config.RangeInt(min = 0, max = 20)
+        public int blockChangeDelayTicks = 0;
+
+        @Config.Comment({"Chunks each player starts watching per second, nearest and in front of the player first.",
+                "Players whose connection is backed up receive none until it drains, 0 removes the limit"})
+        @Config.RangeInt(min = 0, max = 10000)
+        public int chunkSendsPerSecond = 200;
+
+        @Config.Comment("Encode strings and NBT of outgoing packets straight into the network buffer, without intermediate copies (applied on login)")
+        public boolean directEncoding = true;
+    }
+
+    public static class Containers {
+
+        @Config.Comment({"Every n-th tick all slots of tracked containers are compared, to catch stacks changed without",
+                "notifying their inventory. 0 only compares the slots reported as changed"})
+        @Config.RangeInt(min = 0, max = 1200)
+        public int fullSyncInterval = 20;
+    }
+
+    @Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+    private static class EventHandler {
+
+        @SubscribeEvent
+        public static void onConfigChanged(ConfigChangedEvent.OnConfigChangedEvent event) {
+            if (event.getModID().equals(Workshop.MOD_ID)) {
+                ConfigManager.sync(Workshop.MOD_ID, Config.Type.INSTANCE);
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.github.dred974.workshop.workshop.entity;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.entity.Entity;
+import net.minecraft.util.ClassInheritanceMultiMap;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Entity list of a chunk section, in place of its ClassInheritanceMultiMap.
+ * <p>
+ * Every class ever queried through {@link #getByClass} gets a bit, and every entity class the mask of the queried
+ * classes it extends, computed once and only redone when a new class is queried. Adding or removing an entity then
+ * touches the buckets of its mask that this section uses, without any isAssignableFrom, where vanilla tests every
+ * class known to the section. A section only builds the bucket of a class when that class is first queried on it.
+ * <p>
+ * Buckets are arrays in insertion order like vanilla's lists. Removal leaves a hole, found through an index once the
+ * bucket grows past a few entities, and holes are compacted away once they outnumber the entities.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class EntityBuckets extends ClassInheritanceMultiMap<Entity> {
+
+    private static final Map<Class<?>, Integer> KEYS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Mask> MASKS = new ConcurrentHashMap<>();
+    /** Queried classes by bit, only grows. Guarded by KEYS for writes. */
+    private static volatile Class<?>[] keyClasses = {Entity.class};
+
+    static {
+        KEYS.put(Entity.class, 0);
+    }
+
+    /** Buckets by key bit, null until queried in this section. Bucket 0 holds every entity. */
+    private Bucket[] buckets = {new Bucket()};
+    private long[] active = {1L};
+
+    public EntityBuckets() {
+        super(Entity.class);
+    }
+
+    @Override
+    public boolean add(Entity entity) {
+        long[] mask = maskOf(entity.getClass());
+        for (int word = 0; word < active.length && word < mask.length; word++) {
+            long bits = active[word] & mask[word];
+            while (bits != 0) {
+                buckets[word << 6 | Long.numberOfTrailingZeros(bits)].add(entity);
+                bits &= bits - 1;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof Entity) || !buckets[0].remove((Entity) o)) {
+            return false;
+        }
+        Entity entity = (Entity) o;
+        long[] mask = maskOf(entity.getClass());
+        long first = active[0] & mask[0] & ~1L;
+        for (int word = 0; word < active.length && word < mask.length; word++) {
+            long bits = word == 0 ? first : active[word] & mask[word];
+            while (bits != 0) {
+                buckets[word << 6 | Long.numberOfTrailingZeros(bits)].remove(entity);
+                bits &= bits - 1;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return o instanceof Entity && buckets[0].indexOf((Entity) o) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <S> Iterable<S> getByClass(Class<S> type) {
+        int key = keyOf(type);
+        Bucket bucket = key < buckets.length ? buckets[key] : null;
+        if (bucket == null) {
+            bucket = createBucket(key);
+        }
+        Bucket found = bucket;
+        return () -> (Iterator<S>) found.iterator();
+    }
+
+    @Override
+    public Iterator<Entity> iterator() {
+        return buckets[0].live == 0 ? Collections.emptyIterator() : buckets[0].iterator();
+    }
+
+    @Override
+    public int size() {
+        return buckets[0].live;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return buckets[0].live == 0;
+    }
+
+    private Bucket createBucket(int key) {
+        if (key >= buckets.length) {
+            buckets = Arrays.copyOf(buckets, Math.max(key + 1, buckets.length * 2));
+        }
+        if (key >> 6 >= active.length) {
+            active = Arrays.copyOf(active, (key >> 6) + 1);
+        }
+        Bucket bucket = new Bucket();
+        Bucket all = buckets[0];
+        for (int i = 0; i < all.end; i++) {
+            Entity entity = all.items[i];
+            if (entity != null && hasBit(maskOf(entity.getClass()), key)) {
+                bucket.add(entity);
+            }
+        }
+        buckets[key] = bucket;
+        active[key >> 6] |= 1L << key;
+        return bucket;
+    }
+
+    private static boolean hasBit(long[] mask, int bit) {
+        return bit >> 6 < mask.length && (mask[bit >> 6] & 1L << bit) != 0;
+    }
+
+    private static int keyOf(Class<?> type) {
+        Integer key = KEYS.get(type);
+        if (key != null) {
+            return key;
+        }
+        if (!Entity.class.isAssignableFrom(type)) {
+            throw new IllegalArgumentException("Don't know how to search for " + type);
+        }
+        synchronized (KEYS) {
+            key = KEYS.get(type);
+            if (key == null) {
+                key = keyClasses.length;
+                Class<?>[] grown = Arrays.copyOf(keyClasses, key + 1);
+                grown[key] = type;
+                keyClasses = grown;
+                KEYS.put(type, key);
+            }
+            return key;
+        }
+    }
+
+    /** Bits of the queried classes the entity class extends, recomputed when classes were queried since. */
+    private static long[] maskOf(Class<?> type) {
+        Class<?>[] keys = keyClasses;
+        Mask mask = MASKS.get(type);
+        if (mask == null || mask.keyCount != keys.length) {
+            long[] bits = new long[(keys.length + 63) >> 6];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i].isAssignableFrom(type)) {
+                    bits[i >> 6] |= 1L << i;
+                }
+            }
+            mask = new Mask(keys.length, bits);
+            MASKS.put(type, mask);
+        }
+        return mask.bits;
+    }
+
+    public static String describe() {
+        return String.format("%d entity classes, %d queried types", MASKS.size(), keyClasses.length);
+    }
+
+    private static final class Mask {
+
+        final int keyCount;
+        final long[] bits;
+
+        Mask(int keyCount, long[] bits) {
+            this.keyCount = keyCount;
+            this.bits = bits;
+        }
+    }
+
+    /** Entities in insertion order, with null holes left by removals. */
+    private static final class Bucket {
+
+        /** Past this size, positions are found through an index instead of a scan. */
+        private static final int SCAN_LIMIT = 16;
+
+        Entity[] items = new Entity[4];
+        int end;
+        int live;
+        Reference2IntOpenHashMap<Entity> index;
+
+        void add(Entity entity) {
+            if (end == items.length) {
+                if (end - live > live) {
+                    compact();
+                }
+                if (end == items.length) {
+                    items = Arrays.copyOf(items, items.length * 2);
+                }
+            }
+            if (index != null) {
+                index.put(entity, end);
+            }
+            items[end++] = entity;
+            live++;
+            if (index == null && end > SCAN_LIMIT) {
+                buildIndex();
+            }
+        }
+
+        boolean remove(Entity entity) {
+            int i = indexOf(entity);
+            if (i < 0) {
+                return false;
+            }
+            items[i] = null;
+            if (index != null) {
+                index.removeInt(entity);
+            }
+            live--;
+            if (live == 0) {
+                Arrays.fill(items, 0, end, null);
+                end = 0;
+                index = null;
+            } else if (i == end - 1) {
+                end--;
+            }
+            return true;
+        }
+
+        int indexOf(Entity entity) {
+            if (index != null) {
+                return index.getInt(entity);
+            }
+            for (int i = 0; i < end; i++) {
+                if (items[i] == entity) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private void compact() {
+            int to = 0;
+            for (int from = 0; from < end; from++) {
+                if (items[from] != null) {
+                    items[to++] = items[from];
+                }
+            }
+            Arrays.fill(items, to, end, null);
+            end = to;
+            if (index != null) {
+                buildIndex();
+            }
+        }
+
+        private void buildIndex() {
+            index = new Reference2IntOpenHashMap<>(end);
+            index.defaultReturnValue(-1);
+            for (int i = 0; i < end; i++) {
+                if (items[i] != null) {
+                    index.put(items[i], i);
+                }
+            }
+        }
+
+        Iterator<Entity> iterator() {
+            return new Iterator<Entity>() {
+
+                private int next = skip(0);
+
+                private int skip(int from) {
+                    while (from < end && items[from] == null) {
+                        from++;
+                    }
+                    return from;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return next < end;
+                }
+
+                @Override
+                public Entity next() {
+                    if (next >= end) {
+                        throw new NoSuchElementException();
+                    }
+                    Entity entity = items[next];
+                    next = skip(next + 1);
+                    return entity;
+                }
+            };
+        }
+    }
+
+    /** Swaps the entity lists of chunks loaded on the server, keeping the entities already in them. */
+    @SubscribeEvent
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        if (event.getWorld().isRemote) {
+            return;
+        }
+        Chunk chunk = event.getChunk();
+        ClassInheritanceMultiMap<Entity>[] lists = chunk.getEntityLists();
+        for (int i = 0; i < lists.length; i++) {
+            if (lists[i].getClass() != ClassInheritanceMultiMap.class) {
+                continue;
+            }
+            EntityBuckets buckets = new EntityBuckets();
+            for (Entity entity : lists[i]) {
+                buckets.add(entity);
+            }
+            lists[i] = buckets;
+        }
+    }
+}
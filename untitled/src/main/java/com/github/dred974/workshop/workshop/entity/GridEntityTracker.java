@@ -0,0 +1,257 @@
+package com.github.dred974.workshop.workshop.entity;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityTracker;
+import net.minecraft.entity.EntityTrackerEntry;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.lang.reflect.Field;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Entity tracker that only checks entity/player pairs that can be in range of each other.
+ * <p>
+ * Vanilla's tick checks a moved entry against every player of the world, and a moved player against every entry.
+ * Here entries and players are bucketed every tick in a grid of {@link #CELL_SIZE} block cells, and those checks only
+ * see the pairs in cells within the tracking distance, plus the pairs currently tracked so they can be untracked.
+ * The checks themselves, and so the packets sent, are still done by EntityTrackerEntry.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class GridEntityTracker extends EntityTracker {
+
+    private static final int CELL_SHIFT = 6;
+    private static final int CELL_SIZE = 1 << CELL_SHIFT;
+    /**
+     * Entries are checked again once they move more than 4 blocks, players as well, so a pair tracked at the last
+     * check is at most this much further apart than the tracking distance.
+     */
+    private static final int SLACK = 16;
+    private static final int CLEANUP_INTERVAL = 100;
+
+    private static long pairsChecked;
+    private static long pairsVanilla;
+
+    private final WorldServer world;
+    private final Set<EntityTrackerEntry> entries;
+    private final Field maxDistance;
+    private final Long2ObjectOpenHashMap<List<EntityTrackerEntry>> entryCells = new Long2ObjectOpenHashMap<>();
+    private final Long2ObjectOpenHashMap<List<EntityPlayerMP>> playerCells = new Long2ObjectOpenHashMap<>();
+    /** Position of each player at the last time its entries were checked. */
+    private final Map<EntityPlayerMP, double[]> lastChecks = new WeakHashMap<>();
+    private final Candidates candidates = new Candidates();
+    private final ReferenceOpenHashSet<EntityTrackerEntry> seenEntries = new ReferenceOpenHashSet<>();
+    private int ticks;
+
+    private GridEntityTracker(WorldServer world, Set<EntityTrackerEntry> entries, Field maxDistance) {
+        super(world);
+        this.world = world;
+        this.entries = entries;
+        this.maxDistance = maxDistance;
+    }
+
+    @Override
+    public void tick() {
+        int radius = getMaxDistance() + SLACK;
+        rebuildGrid();
+
+        List<EntityPlayerMP> movedPlayers = new ArrayList<>();
+        for (EntityTrackerEntry entry : entries) {
+            candidates.reset(entry, radius);
+            entry.updatePlayerList(candidates);
+            if (entry.playerEntitiesUpdated) {
+                Entity entity = entry.getTrackedEntity();
+                if (entity instanceof EntityPlayerMP) {
+                    movedPlayers.add((EntityPlayerMP) entity);
+                }
+            }
+        }
+
+        for (EntityPlayerMP player : movedPlayers) {
+            double[] last = lastChecks.get(player);
+            lastChecks.put(player, new double[]{player.posX, player.posZ});
+            if (last == null) {
+                // First check of this player, fall back to every entry
+                for (EntityTrackerEntry entry : entries) {
+                    if (entry.getTrackedEntity() != player) {
+                        entry.updatePlayerEntity(player);
+                    }
+                }
+                pairsChecked += entries.size();
+                continue;
+            }
+            seenEntries.clear();
+            checkEntriesAround(player, player.posX, player.posZ, radius);
+            checkEntriesAround(player, last[0], last[1], radius);
+        }
+    }
+
+    private void checkEntriesAround(EntityPlayerMP player, double x, double z, int radius) {
+        int minX = MathHelper.floor(x - radius) >> CELL_SHIFT;
+        int maxX = MathHelper.floor(x + radius) >> CELL_SHIFT;
+        int minZ = MathHelper.floor(z - radius) >> CELL_SHIFT;
+        int maxZ = MathHelper.floor(z + radius) >> CELL_SHIFT;
+        for (int cellX = minX; cellX <= maxX; cellX++) {
+            for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+                List<EntityTrackerEntry> cell = entryCells.get(cellKey(cellX, cellZ));
+                if (cell == null) {
+                    continue;
+                }
+                for (EntityTrackerEntry entry : cell) {
+                    if (entry.getTrackedEntity() != player && seenEntries.add(entry)) {
+                        entry.updatePlayerEntity(player);
+                        pairsChecked++;
+                    }
+                }
+            }
+        }
+    }
+
+    private void rebuildGrid() {
+        if (++ticks % CLEANUP_INTERVAL == 0) {
+            entryCells.clear();
+            playerCells.clear();
+        } else {
+            for (List<EntityTrackerEntry> cell : entryCells.values()) {
+                cell.clear();
+            }
+            for (List<EntityPlayerMP> cell : playerCells.values()) {
+                cell.clear();
+            }
+        }
+        for (EntityTrackerEntry entry : entries) {
+            Entity entity = entry.getTrackedEntity();
+            entryCells.computeIfAbsent(cellKey(entity.posX, entity.posZ), key -> new ArrayList<>()).add(entry);
+        }
+        for (EntityPlayer player : world.playerEntities) {
+            if (player instanceof EntityPlayerMP) {
+                playerCells.computeIfAbsent(cellKey(player.posX, player.posZ), key -> new ArrayList<>()).add((EntityPlayerMP) player);
+            }
+        }
+        pairsVanilla += (long) entries.size() * world.playerEntities.size();
+    }
+
+    private int getMaxDistance() {
+        try {
+            return maxDistance.getInt(this);
+        } catch (IllegalAccessException e) {
+            return 512;
+        }
+    }
+
+    private static long cellKey(double x, double z) {
+        return cellKey(MathHelper.floor(x) >> CELL_SHIFT, MathHelper.floor(z) >> CELL_SHIFT);
+    }
+
+    private static long cellKey(int cellX, int cellZ) {
+        return (long) cellX & 0xFFFFFFFFL | ((long) cellZ & 0xFFFFFFFFL) << 32;
+    }
+
+    public static String describe() {
+        return String.format("%d entity/player pairs checked, %d would have been scanned by vanilla", pairsChecked, pairsVanilla);
+    }
+
+    /**
+     * Players an entry has to be checked against: those in cells around the entity, and those tracking it.
+     * Only resolved when the entry actually reads it, which is only when it moved enough to be checked again.
+     */
+    private final class Candidates extends AbstractList<EntityPlayer> {
+
+        private final List<EntityPlayer> players = new ArrayList<>();
+        private final ReferenceOpenHashSet<EntityPlayer> seen = new ReferenceOpenHashSet<>();
+        private EntityTrackerEntry entry;
+        private int radius;
+        private boolean resolved;
+
+        void reset(EntityTrackerEntry entry, int radius) {
+            this.entry = entry;
+            this.radius = radius;
+            this.resolved = false;
+        }
+
+        private void resolve() {
+            if (resolved) {
+                return;
+            }
+            resolved = true;
+            players.clear();
+            seen.clear();
+            Entity entity = entry.getTrackedEntity();
+            int minX = MathHelper.floor(entity.posX - radius) >> CELL_SHIFT;
+            int maxX = MathHelper.floor(entity.posX + radius) >> CELL_SHIFT;
+            int minZ = MathHelper.floor(entity.posZ - radius) >> CELL_SHIFT;
+            int maxZ = MathHelper.floor(entity.posZ + radius) >> CELL_SHIFT;
+            for (int cellX = minX; cellX <= maxX; cellX++) {
+                for (int cellZ = minZ; cellZ <= maxZ; cellZ++) {
+                    List<EntityPlayerMP> cell = playerCells.get(cellKey(cellX, cellZ));
+                    if (cell != null) {
+                        for (EntityPlayerMP player : cell) {
+                            if (seen.add(player)) {
+                                players.add(player);
+                            }
+                        }
+                    }
+                }
+            }
+            for (EntityPlayerMP player : entry.trackingPlayers) {
+                if (seen.add(player)) {
+                    players.add(player);
+                }
+            }
+            pairsChecked += players.size();
+        }
+
+        @Override
+        public EntityPlayer get(int index) {
+            resolve();
+            return players.get(index);
+        }
+
+        @Override
+        public int size() {
+            resolve();
+            return players.size();
+        }
+    }
+
+    /** Swaps the plain vanilla entity tracker of a server world, keeping what it already tracks. */
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.getWorld();
+        EntityTracker vanilla = world.getEntityTracker();
+        if (vanilla.getClass() != EntityTracker.class) {
+            return;
+        }
+        Set<EntityTrackerEntry> entries = Reflection.getField(EntityTracker.class, vanilla, "entries", "field_72793_b");
+        Object lookup = Reflection.getField(EntityTracker.class, vanilla, "trackedEntityHashTable", "field_72794_c");
+        Field maxDistance = Reflection.findField(EntityTracker.class, "maxTrackingDistanceThreshold", "field_72792_d");
+        if (entries == null || lookup == null || maxDistance == null) {
+            return;
+        }
+        GridEntityTracker tracker = new GridEntityTracker(world, entries, maxDistance);
+        // Share the vanilla tracker's collections, so entities tracked before the swap stay tracked
+        if (!Reflection.setField(EntityTracker.class, tracker, entries, "entries", "field_72793_b")
+                || !Reflection.setField(EntityTracker.class, tracker, lookup, "trackedEntityHashTable", "field_72794_c")
+                || !Reflection.setField(WorldServer.class, world, tracker, "entityTracker", "field_73062_L")) {
+            Workshop.LOGGER.warn("Could not install the grid entity tracker in dimension {}", world.provider.getDimension());
+        }
+    }
+}
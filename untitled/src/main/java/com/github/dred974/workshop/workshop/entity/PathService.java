@@ -0,0 +1,356 @@
+package com.github.dred974.workshop.workshop.entity;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.pathfinding.NodeProcessor;
+import net.minecraft.pathfinding.Path;
+import net.minecraft.pathfinding.PathFinder;
+import net.minecraft.pathfinding.PathNavigate;
+import net.minecraft.pathfinding.PathNodeType;
+import net.minecraft.pathfinding.PathPoint;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.ChunkCache;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.entity.EntityJoinWorldEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Path searches of the mobs of a world, run at the end of the server tick instead of when a mob's AI asks for them.
+ * <p>
+ * A search is keyed by the mob's type, size, path costs and navigation abilities, the blocks it starts from and goes
+ * to, and its search range. Mobs asking for a route that is already queued wait for the same search, and a found path
+ * (or the lack of one) is handed to every mob asking for that route during the next pathfinding.resultTicks ticks,
+ * each getting its own copy. Meanwhile mobs keep following their current path, and once the search ran its path is
+ * set on the waiting navigators that were not given another one. Mobs with no path to follow are searched for right
+ * away as long as the tick's budget allows. Queued searches run oldest first until the budget is spent, the rest wait
+ * for the next tick, so a siege costs at most the budget per tick instead of every search at once.
+ * <p>
+ * Searches still run on the main thread: WalkNodeProcessor reads the mob's world directly, firing Forge events, so it
+ * cannot safely run against a snapshot on another thread.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class PathService {
+
+    private static final Field PATH_FINDER = Reflection.findField(PathNavigate.class, "pathFinder", "field_179681_j");
+    private static final Field TARGET_POS = Reflection.findField(PathNavigate.class, "targetPos", "field_188564_r");
+    private static final Field SPEED = Reflection.findField(PathNavigate.class, "speed", "field_75511_d");
+    private static final Map<World, PathService> BY_WORLD = new WeakHashMap<>();
+
+    private static long searches;
+    private static long shared;
+    private static long refused;
+    private static double millisPerTick;
+    private static long windowNanos;
+    /** Time spent searching since the end of the last tick. */
+    private static long spentNanos;
+    private static int ticks;
+
+    private final WorldServer world;
+    /** Insertion ordered, oldest first. */
+    private final LinkedHashMap<Route, Search> queued = new LinkedHashMap<>();
+    private final Map<Route, Result> results = new HashMap<>();
+
+    private PathService(WorldServer world) {
+        this.world = world;
+    }
+
+    /** Returns the service of the world, or null if searches must run right away. */
+    @Nullable
+    static PathService get(World world) {
+        return WorkshopConfig.pathfinding.enabled ? BY_WORLD.get(world) : null;
+    }
+
+    @Nullable
+    Path request(SharedPathFinder finder, EntityLiving entity, @Nullable Entity targetEntity, BlockPos target, float maxDistance) {
+        Route route = new Route(entity, finder.getProcessor(), target, maxDistance);
+        long time = world.getTotalWorldTime();
+        Result result = results.get(route);
+        if (result != null && time - result.time <= WorkshopConfig.pathfinding.resultTicks) {
+            shared++;
+            return result.path == null ? null : copy(result.path);
+        }
+        PathNavigate navigator = entity.getNavigator();
+        Path current = navigator.getPath();
+        boolean following = current != null && !current.isFinished();
+        Search search = queued.get(route);
+        if (!following && spentNanos < budgetNanos()) {
+            // Nothing to follow meanwhile, and tasks picking random targets never ask twice for the same route
+            if (search == null) {
+                search = new Search(finder, entity, targetEntity, target, maxDistance);
+            } else {
+                queued.remove(route);
+            }
+            Path path = complete(route, search, time);
+            return path == null ? null : copy(path);
+        }
+        if (search == null) {
+            if (queued.size() >= WorkshopConfig.pathfinding.maxQueuedSearches) {
+                refused++;
+                return following ? keep(navigator, current) : null;
+            }
+            search = new Search(finder, entity, targetEntity, target, maxDistance);
+            queued.put(route, search);
+        }
+        Path returned = following ? keep(navigator, current) : null;
+        search.addWaiting(navigator, returned);
+        return returned;
+    }
+
+    /**
+     * Keeps the mob on its current path while the new one is searched. PathNavigate already took the new target as
+     * the one of its path, which would make it hand out the current path for the new target until it ends.
+     */
+    private static Path keep(PathNavigate navigator, Path current) {
+        if (TARGET_POS != null) {
+            PathPoint end = current.getFinalPathPoint();
+            try {
+                TARGET_POS.set(navigator, end == null ? null : new BlockPos(end.x, end.y, end.z));
+            } catch (IllegalAccessException e) {
+                Workshop.LOGGER.warn("Unable to restore the target of a navigator", e);
+            }
+        }
+        return current;
+    }
+
+    /** Runs a search, keeps its result and hands it to the navigators waiting for it. */
+    @Nullable
+    private Path complete(Route route, Search search, long time) {
+        long start = System.nanoTime();
+        Path path = search.run(world);
+        spentNanos += System.nanoTime() - start;
+        searches++;
+        results.put(route, new Result(path, time));
+        if (path != null) {
+            search.deliver(path);
+        }
+        return path;
+    }
+
+    /** Runs queued searches until the tick's budget is spent, then forgets results too old to be handed out. */
+    private void process(long budget) {
+        long time = world.getTotalWorldTime();
+        Iterator<Map.Entry<Route, Search>> iterator = queued.entrySet().iterator();
+        while (iterator.hasNext() && spentNanos < budget) {
+            Map.Entry<Route, Search> entry = iterator.next();
+            iterator.remove();
+            Search search = entry.getValue();
+            if (search.entity.isDead || search.entity.world != world) {
+                continue;
+            }
+            complete(entry.getKey(), search, time);
+        }
+        if (time % 20 == 0) {
+            results.values().removeIf(result -> time - result.time > WorkshopConfig.pathfinding.resultTicks);
+        }
+    }
+
+    private static long budgetNanos() {
+        return (long) (WorkshopConfig.pathfinding.budgetMillis * TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    /** Paths are advanced by the navigator following them, each mob needs its own. */
+    private static Path copy(Path path) {
+        PathPoint[] points = new PathPoint[path.getCurrentPathLength()];
+        for (int i = 0; i < points.length; i++) {
+            PathPoint point = path.getPathPointFromIndex(i);
+            points[i] = point.cloneMove(point.x, point.y, point.z);
+        }
+        return new Path(points);
+    }
+
+    public static String describe() {
+        int waiting = 0;
+        for (PathService service : BY_WORLD.values()) {
+            waiting += service.queued.size();
+        }
+        return String.format("%d searches, %d shared, %d queued, %d refused, %.2f ms/tick", searches, shared, waiting, refused, millisPerTick);
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        long budget = budgetNanos();
+        for (PathService service : BY_WORLD.values()) {
+            service.process(budget);
+        }
+        // Searches run while the world ticked count against this tick's budget too
+        windowNanos += spentNanos;
+        spentNanos = 0;
+        if (++ticks % 20 == 0) {
+            millisPerTick = windowNanos / 1e6 / 20;
+            windowNanos = 0;
+        }
+    }
+
+    /** Gives mobs joining a server world a path finder going through the service. */
+    @SubscribeEvent
+    public static void onEntityJoinWorld(EntityJoinWorldEvent event) {
+        if (!(event.getEntity() instanceof EntityLiving) || !(event.getWorld() instanceof WorldServer)
+                || !WorkshopConfig.pathfinding.enabled || PATH_FINDER == null) {
+            return;
+        }
+        PathNavigate navigator = ((EntityLiving) event.getEntity()).getNavigator();
+        try {
+            if (PATH_FINDER.get(navigator).getClass() != PathFinder.class) {
+                return;
+            }
+            PATH_FINDER.set(navigator, new SharedPathFinder(navigator.getNodeProcessor()));
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to replace the path finder of {}", event.getEntity(), e);
+            return;
+        }
+        BY_WORLD.computeIfAbsent(event.getWorld(), world -> new PathService((WorldServer) world));
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        BY_WORLD.remove(event.getWorld());
+    }
+
+    /** What a path depends on besides the blocks around it. */
+    private static final class Route {
+
+        private static final PathNodeType[] TYPES = PathNodeType.values();
+
+        final Class<?> type;
+        final int abilities;
+        final float width;
+        final float height;
+        final float[] malus;
+        final long from;
+        final long to;
+        final int maxDistance;
+
+        Route(EntityLiving entity, NodeProcessor processor, BlockPos target, float maxDistance) {
+            this.type = entity.getClass();
+            this.abilities = (processor.getCanSwim() ? 1 : 0) | (processor.getCanEnterDoors() ? 2 : 0) | (processor.getCanOpenDoors() ? 4 : 0);
+            // Node processors size the mob from these, babies fit where adults do not
+            this.width = entity.width;
+            this.height = entity.height;
+            this.malus = new float[TYPES.length];
+            for (int i = 0; i < TYPES.length; i++) {
+                malus[i] = entity.getPathPriority(TYPES[i]);
+            }
+            this.from = new BlockPos(entity).toLong();
+            this.to = target.toLong();
+            this.maxDistance = Float.floatToIntBits(maxDistance);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) o;
+            return type == other.type && abilities == other.abilities && from == other.from && to == other.to && maxDistance == other.maxDistance
+                    && Float.compare(width, other.width) == 0 && Float.compare(height, other.height) == 0 && Arrays.equals(malus, other.malus);
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = type.hashCode();
+            hash = 31 * hash + abilities;
+            hash = 31 * hash + Float.floatToIntBits(width);
+            hash = 31 * hash + Float.floatToIntBits(height);
+            hash = 31 * hash + Arrays.hashCode(malus);
+            hash = 31 * hash + Long.hashCode(from);
+            hash = 31 * hash + Long.hashCode(to);
+            return 31 * hash + maxDistance;
+        }
+    }
+
+    private static final class Search {
+
+        final SharedPathFinder finder;
+        final EntityLiving entity;
+        @Nullable
+        final Entity targetEntity;
+        final BlockPos target;
+        final float maxDistance;
+        /** Navigators waiting for the result, with the path each was given meanwhile. */
+        final List<PathNavigate> navigators = new ArrayList<>(1);
+        final List<Path> given = new ArrayList<>(1);
+
+        Search(SharedPathFinder finder, EntityLiving entity, @Nullable Entity targetEntity, BlockPos target, float maxDistance) {
+            this.finder = finder;
+            this.entity = entity;
+            this.targetEntity = targetEntity;
+            this.target = target;
+            this.maxDistance = maxDistance;
+        }
+
+        void addWaiting(PathNavigate navigator, @Nullable Path path) {
+            int index = navigators.indexOf(navigator);
+            if (index < 0) {
+                navigators.add(navigator);
+                given.add(path);
+            } else {
+                given.set(index, path);
+            }
+        }
+
+        /** Sets the path on waiting navigators that did not get another one since they asked. */
+        void deliver(Path path) {
+            if (SPEED == null) {
+                return;
+            }
+            for (int i = 0; i < navigators.size(); i++) {
+                PathNavigate navigator = navigators.get(i);
+                Path given = this.given.get(i);
+                if (given == null ? !navigator.noPath() : navigator.getPath() != given) {
+                    continue;
+                }
+                try {
+                    navigator.setPath(copy(path), SPEED.getDouble(navigator));
+                } catch (IllegalAccessException e) {
+                    return;
+                }
+            }
+        }
+
+        /** Same region as PathNavigate gives the path finder. */
+        @Nullable
+        Path run(World world) {
+            world.profiler.startSection("pathfind");
+            BlockPos origin = new BlockPos(entity);
+            int radius = (int) (maxDistance + 8.0F);
+            ChunkCache region = new ChunkCache(world, origin.add(-radius, -radius, -radius), origin.add(radius, radius, radius), 0);
+            Path path = finder.search(region, entity, targetEntity != null && !targetEntity.isDead ? targetEntity : null, target, maxDistance);
+            world.profiler.endSection();
+            return path;
+        }
+    }
+
+    private static final class Result {
+
+        @Nullable
+        final Path path;
+        final long time;
+
+        Result(@Nullable Path path, long time) {
+            this.path = path;
+            this.time = time;
+        }
+    }
+}
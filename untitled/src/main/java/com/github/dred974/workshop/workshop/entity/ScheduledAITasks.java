@@ -0,0 +1,223 @@
+package com.github.dred974.workshop.workshop.entity;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.entity.ai.EntityAITasks;
+import net.minecraft.entity.passive.EntityTameable;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.entity.EntityJoinWorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.lang.reflect.Field;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * AI task list of a mob that looks for new tasks less often the further the mob is from players.
+ * <p>
+ * Vanilla checks every task of every mob every 3 ticks, and mobs loaded together check on the same ticks. Here each
+ * mob starts at a random offset, keeps the vanilla rate within ai.fullRateRange of a player and slows down linearly to
+ * one check every ai.maxEvaluationInterval ticks at ai.activationRange. Past that range running tasks are reset, none
+ * is run and the mob's path is dropped. Movement itself is not part of the tasks, so frozen mobs still fall, get
+ * pushed and float.
+ * Running tasks are still updated every tick while the mob is active, and the checks done follow vanilla's.
+ * <p>
+ * The distance to the nearest player is looked up every {@link #DISTANCE_INTERVAL} ticks.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class ScheduledAITasks extends EntityAITasks {
+
+    private static final Field TASKS = Reflection.findField(EntityLiving.class, "tasks", "field_70714_bg");
+    private static final Field TARGET_TASKS = Reflection.findField(EntityLiving.class, "targetTasks", "field_70715_bh");
+    private static final Field EXECUTING = Reflection.findField(EntityAITasks.class, "executingTaskEntries", "field_75780_b");
+    private static final Field DISABLED_FLAGS = Reflection.findField(EntityAITasks.class, "disabledControlFlags", "field_188529_g");
+    private static final int TICK_RATE = 3;
+    private static final int DISTANCE_INTERVAL = 10;
+
+    private static long evaluations;
+    private static long vanillaEvaluations;
+    private static long frozenTicks;
+
+    private final EntityLiving entity;
+    private final Set<EntityAITaskEntry> executing;
+    private int ticks;
+    private int interval = TICK_RATE;
+    private int untilEvaluation;
+    private boolean frozen;
+
+    @SuppressWarnings("unchecked")
+    private ScheduledAITasks(EntityLiving entity) throws IllegalAccessException {
+        super(entity.world.profiler);
+        this.entity = entity;
+        this.executing = (Set<EntityAITaskEntry>) EXECUTING.get(this);
+        this.ticks = entity.getEntityId() % DISTANCE_INTERVAL;
+        this.untilEvaluation = 1 + entity.getRNG().nextInt(TICK_RATE);
+    }
+
+    @Override
+    public void onUpdateTasks() {
+        if (ticks++ % DISTANCE_INTERVAL == 0) {
+            schedule();
+        }
+        if (ticks % TICK_RATE == 0) {
+            vanillaEvaluations++;
+        }
+        if (frozen) {
+            frozenTicks++;
+            return;
+        }
+        entity.world.profiler.startSection("goalSetup");
+        if (--untilEvaluation <= 0) {
+            untilEvaluation = interval;
+            evaluations++;
+            for (EntityAITaskEntry entry : taskEntries) {
+                if (entry.using) {
+                    if (!canUse(entry) || !entry.action.shouldContinueExecuting()) {
+                        entry.using = false;
+                        entry.action.resetTask();
+                        executing.remove(entry);
+                    }
+                } else if (canUse(entry) && entry.action.shouldExecute()) {
+                    entry.using = true;
+                    entry.action.startExecuting();
+                    executing.add(entry);
+                }
+            }
+        } else {
+            Iterator<EntityAITaskEntry> iterator = executing.iterator();
+            while (iterator.hasNext()) {
+                EntityAITaskEntry entry = iterator.next();
+                if (!entry.action.shouldContinueExecuting()) {
+                    entry.using = false;
+                    entry.action.resetTask();
+                    iterator.remove();
+                }
+            }
+        }
+        entity.world.profiler.endSection();
+        if (!executing.isEmpty()) {
+            entity.world.profiler.startSection("goalTick");
+            for (EntityAITaskEntry entry : executing) {
+                entry.action.updateTask();
+            }
+            entity.world.profiler.endSection();
+        }
+    }
+
+    /** Same as vanilla: the task's controls are enabled, and no running task of higher priority holds them. */
+    private boolean canUse(EntityAITaskEntry entry) {
+        if (executing.isEmpty()) {
+            return true;
+        }
+        if ((disabledFlags() & entry.action.getMutexBits()) > 0) {
+            return false;
+        }
+        for (EntityAITaskEntry other : executing) {
+            if (other == entry) {
+                continue;
+            }
+            if (entry.priority >= other.priority) {
+                if ((entry.action.getMutexBits() & other.action.getMutexBits()) != 0) {
+                    return false;
+                }
+            } else if (!other.action.isInterruptible()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int disabledFlags() {
+        try {
+            return DISABLED_FLAGS == null ? 0 : DISABLED_FLAGS.getInt(this);
+        } catch (IllegalAccessException e) {
+            return 0;
+        }
+    }
+
+    /** Picks the check interval from the distance to the nearest player, freezing the mob past the activation range. */
+    private void schedule() {
+        WorkshopConfig.Ai config = WorkshopConfig.ai;
+        int range = config.activationRange;
+        if (range <= 0 || !config.enabled) {
+            frozen = false;
+            interval = TICK_RATE;
+            return;
+        }
+        EntityPlayer player = entity.world.getClosestPlayer(entity.posX, entity.posY, entity.posZ, -1.0D, false);
+        double distance = player == null ? Double.MAX_VALUE : player.getDistance(entity);
+        boolean freeze = distance > range && !isExempt();
+        if (freeze && !frozen) {
+            // Stop the running tasks like replace does, so none is left half done while the mob is frozen
+            for (EntityAITaskEntry entry : executing) {
+                entry.using = false;
+                entry.action.resetTask();
+            }
+            executing.clear();
+            entity.getNavigator().clearPath();
+        }
+        frozen = freeze;
+        int full = Math.min(config.fullRateRange, range);
+        if (distance <= full) {
+            interval = TICK_RATE;
+        } else {
+            double scale = Math.min(1.0D, (distance - full) / Math.max(1, range - full));
+            int slower = TICK_RATE + (int) ((config.maxEvaluationInterval - TICK_RATE) * scale);
+            if (slower > interval) {
+                // Spread mobs slowing down together over the longer interval
+                untilEvaluation += entity.getRNG().nextInt(slower - interval + 1);
+            }
+            interval = slower;
+        }
+        untilEvaluation = Math.min(untilEvaluation, interval);
+    }
+
+    /** Tamed mobs must keep following owners far away, ridden ones are where their rider is. */
+    private boolean isExempt() {
+        return entity instanceof EntityTameable && ((EntityTameable) entity).isTamed() || entity.isBeingRidden() || entity.isRiding();
+    }
+
+    public static String describe() {
+        return String.format("%d task checks where vanilla did %d, %d mob ticks frozen", evaluations, vanillaEvaluations, frozenTicks);
+    }
+
+    /** Gives mobs joining a server world scheduled task lists, keeping the tasks added so far. */
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    public static void onEntityJoinWorld(EntityJoinWorldEvent event) {
+        if (event.isCanceled() || !(event.getEntity() instanceof EntityLiving) || !(event.getWorld() instanceof WorldServer)
+                || !WorkshopConfig.ai.enabled || TASKS == null || TARGET_TASKS == null || EXECUTING == null) {
+            return;
+        }
+        EntityLiving entity = (EntityLiving) event.getEntity();
+        try {
+            replace(entity, TASKS);
+            replace(entity, TARGET_TASKS);
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to replace the AI tasks of {}", entity, e);
+        }
+    }
+
+    private static void replace(EntityLiving entity, Field field) throws IllegalAccessException {
+        EntityAITasks tasks = (EntityAITasks) field.get(entity);
+        if (tasks.getClass() != EntityAITasks.class) {
+            return;
+        }
+        ScheduledAITasks scheduled = new ScheduledAITasks(entity);
+        for (EntityAITaskEntry entry : tasks.taskEntries) {
+            if (entry.using) {
+                entry.using = false;
+                entry.action.resetTask();
+            }
+            scheduled.addTask(entry.priority, entry.action);
+        }
+        if (DISABLED_FLAGS != null) {
+            DISABLED_FLAGS.setInt(scheduled, DISABLED_FLAGS.getInt(tasks));
+        }
+        field.set(entity, scheduled);
+    }
+}
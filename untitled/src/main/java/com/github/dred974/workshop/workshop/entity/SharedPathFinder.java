@@ -0,0 +1,57 @@
+package com.github.dred974.workshop.workshop.entity;
+
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityLiving;
+import net.minecraft.pathfinding.NodeProcessor;
+import net.minecraft.pathfinding.Path;
+import net.minecraft.pathfinding.PathFinder;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.IBlockAccess;
+
+import javax.annotation.Nullable;
+
+/**
+ * Path finder of a mob's navigator that hands its searches to the world's {@link PathService} instead of running them
+ * on the spot. Asking returns the shared result once the search ran, and until then the path the mob is following.
+ */
+public class SharedPathFinder extends PathFinder {
+
+    private final NodeProcessor processor;
+
+    SharedPathFinder(NodeProcessor processor) {
+        super(processor);
+        this.processor = processor;
+    }
+
+    @Nullable
+    @Override
+    public Path findPath(IBlockAccess world, EntityLiving entity, Entity target, float maxDistance) {
+        PathService service = PathService.get(entity.world);
+        if (service == null) {
+            return super.findPath(world, entity, target, maxDistance);
+        }
+        return service.request(this, entity, target, new BlockPos(target.posX, target.getEntityBoundingBox().minY, target.posZ), maxDistance);
+    }
+
+    @Nullable
+    @Override
+    public Path findPath(IBlockAccess world, EntityLiving entity, BlockPos target, float maxDistance) {
+        PathService service = PathService.get(entity.world);
+        if (service == null) {
+            return super.findPath(world, entity, target, maxDistance);
+        }
+        return service.request(this, entity, null, target, maxDistance);
+    }
+
+    NodeProcessor getProcessor() {
+        return processor;
+    }
+
+    /** Runs the search now, like vanilla. */
+    @Nullable
+    Path search(IBlockAccess world, EntityLiving entity, @Nullable Entity targetEntity, BlockPos target, float maxDistance) {
+        return targetEntity != null
+                ? super.findPath(world, entity, targetEntity, maxDistance)
+                : super.findPath(world, entity, target, maxDistance);
+    }
+}
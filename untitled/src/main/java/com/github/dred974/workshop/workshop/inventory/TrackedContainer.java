@@ -0,0 +1,92 @@
+package com.github.dred974.workshop.workshop.inventory;
+
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.inventory.Container;
+import net.minecraft.inventory.IContainerListener;
+import net.minecraft.inventory.Slot;
+import net.minecraft.item.ItemStack;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Container base that only compares and syncs the {@link TrackedSlot}s whose stack changed.
+ * <p>
+ * Vanilla compares and copies every slot of every open container each tick. Here tracked slots are skipped unless
+ * their handler flagged them dirty, other slots (the player's inventory usually) are still checked every tick.
+ * Every containers.fullSyncInterval ticks all slots are checked anyway, to catch stacks changed without notifying
+ * their handler.
+ */
+public abstract class TrackedContainer extends Container {
+
+    private static final LongAdder compared = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+
+    /** Dirty slots of the handler behind each container slot, null for untracked slots. */
+    private final List<BitSet> slotDirty = new ArrayList<>();
+    private final Map<TrackedItemStackHandler, BitSet> handlers = new IdentityHashMap<>();
+    private int ticks;
+
+    @Override
+    protected Slot addSlotToContainer(Slot slot) {
+        BitSet dirty = null;
+        if (slot instanceof TrackedSlot) {
+            TrackedItemStackHandler handler = ((TrackedSlot) slot).getHandler();
+            dirty = handlers.computeIfAbsent(handler, key -> key.watch(this));
+        }
+        slotDirty.add(dirty);
+        return super.addSlotToContainer(slot);
+    }
+
+    @Override
+    public void detectAndSendChanges() {
+        int interval = WorkshopConfig.containers.fullSyncInterval;
+        boolean full = interval > 0 && ++ticks % interval == 0;
+        for (int i = 0; i < inventorySlots.size(); i++) {
+            Slot slot = inventorySlots.get(i);
+            BitSet dirty = slotDirty.get(i);
+            if (dirty != null && !full && !dirty.get(slot.getSlotIndex())) {
+                skipped.increment();
+                continue;
+            }
+            compared.increment();
+            // Same as vanilla
+            ItemStack current = slot.getStack();
+            ItemStack synced = inventoryItemStacks.get(i);
+            if (!ItemStack.areItemStacksEqual(synced, current)) {
+                boolean clientStackChanged = !ItemStack.areItemStacksEqualUsingNBTShareTag(synced, current);
+                synced = current.isEmpty() ? ItemStack.EMPTY : current.copy();
+                inventoryItemStacks.set(i, synced);
+                if (clientStackChanged) {
+                    for (IContainerListener listener : listeners) {
+                        listener.sendSlotContents(this, i, synced);
+                    }
+                }
+            }
+        }
+        // Cleared once every slot was seen, a handler slot may back several container slots
+        for (BitSet dirty : handlers.values()) {
+            dirty.clear();
+        }
+    }
+
+    @Override
+    public void onContainerClosed(EntityPlayer player) {
+        super.onContainerClosed(player);
+        for (TrackedItemStackHandler handler : handlers.keySet()) {
+            handler.unwatch(this);
+        }
+    }
+
+    public static String describe() {
+        long comparedCount = compared.sum();
+        long total = comparedCount + skipped.sum();
+        return String.format("%d slots compared, %d skipped (%.1f%%)", comparedCount, total - comparedCount,
+                total == 0 ? 0 : (total - comparedCount) * 100.0 / total);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.dred974.workshop.workshop.inventory;
+
+import net.minecraft.item.ItemStack;
+import net.minecraft.util.NonNullList;
+import net.minecraftforge.items.ItemStackHandler;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Item handler that tells its viewers which slots changed, so they only compare and sync those.
+ * <p>
+ * Every viewer, usually a {@link TrackedContainer}, gets its own set of dirty slots, flagged whenever the handler is
+ * notified of a change. Code changing a stack it got from {@link #getStackInSlot} behind the handler's back must call
+ * {@link #markDirty(int)}, {@link TrackedSlot} does it for slot clicks.
+ */
+public class TrackedItemStackHandler extends ItemStackHandler {
+
+    /** Dirty slots of each viewer, weakly held in case a viewer is never closed. */
+    private final Map<Object, BitSet> viewers = new WeakHashMap<>();
+
+    public TrackedItemStackHandler() {
+        super();
+    }
+
+    public TrackedItemStackHandler(int size) {
+        super(size);
+    }
+
+    public TrackedItemStackHandler(NonNullList<ItemStack> stacks) {
+        super(stacks);
+    }
+
+    /** Returns the dirty slots of the viewer, starting with every slot dirty. */
+    public BitSet watch(Object viewer) {
+        BitSet dirty = viewers.get(viewer);
+        if (dirty == null) {
+            dirty = new BitSet(getSlots());
+            dirty.set(0, getSlots());
+            viewers.put(viewer, dirty);
+        }
+        return dirty;
+    }
+
+    public void unwatch(Object viewer) {
+        viewers.remove(viewer);
+    }
+
+    public void markDirty(int slot) {
+        for (BitSet dirty : viewers.values()) {
+            dirty.set(slot);
+        }
+    }
+
+    public void markAllDirty() {
+        for (BitSet dirty : viewers.values()) {
+            dirty.set(0, getSlots());
+        }
+    }
+
+    @Override
+    public void setSize(int size) {
+        super.setSize(size);
+        markAllDirty();
+    }
+
+    @Override
+    protected void onLoad() {
+        super.onLoad();
+        markAllDirty();
+    }
+
+    @Override
+    protected void onContentsChanged(int slot) {
+        super.onContentsChanged(slot);
+        markDirty(slot);
+    }
+}
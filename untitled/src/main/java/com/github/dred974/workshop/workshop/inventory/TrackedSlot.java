@@ -0,0 +1,24 @@
+package com.github.dred974.workshop.workshop.inventory;
+
+import net.minecraftforge.items.SlotItemHandler;
+
+/** Slot of a {@link TrackedItemStackHandler}, flagging its stack dirty whenever the container changes it in place. */
+public class TrackedSlot extends SlotItemHandler {
+
+    private final TrackedItemStackHandler handler;
+
+    public TrackedSlot(TrackedItemStackHandler handler, int index, int xPosition, int yPosition) {
+        super(handler, index, xPosition, yPosition);
+        this.handler = handler;
+    }
+
+    public TrackedItemStackHandler getHandler() {
+        return handler;
+    }
+
+    @Override
+    public void onSlotChanged() {
+        super.onSlotChanged();
+        handler.markDirty(getSlotIndex());
+    }
+}
@@ -0,0 +1,361 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import it.unimi.dsi.fastutil.ints.Int2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.INetHandler;
+import net.minecraft.network.NetHandlerPlayServer;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.server.SPacketCustomPayload;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.common.network.FMLEventChannel;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent;
+import net.minecraftforge.fml.common.network.NetworkRegistry;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessage;
+import net.minecraftforge.fml.common.network.simpleimpl.IMessageHandler;
+import net.minecraftforge.fml.common.network.simpleimpl.MessageContext;
+import net.minecraftforge.fml.relauncher.Side;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Counterpart of SimpleNetworkWrapper that sends all the messages queued for a player during a tick as one payload.
+ * <p>
+ * SimpleNetworkWrapper sends each message as its own FMLProxyPacket, so hundreds of small GUI updates mean hundreds
+ * of packets through the whole pipeline. Here messages are appended to a buffer kept per player, as a varint
+ * discriminator, a varint length and the message bytes, and each buffer is sent as a single custom payload at the end
+ * of the server tick (the client tick for messages to the server). The length lets the receiver skip messages it
+ * does not know. Buffers are reused from tick to tick, only the payload sent is allocated.
+ * <p>
+ * Messages use the usual IMessage and IMessageHandler. As with SimpleNetworkWrapper, handlers run on the network
+ * thread and a reply they return is queued back to the sender.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class BatchedChannel {
+
+    /** Largest payload accepted by SPacketCustomPayload. */
+    private static final int MAX_CLIENTBOUND = 1048576;
+    /** Largest payload accepted by CPacketCustomPayload. */
+    private static final int MAX_SERVERBOUND = 32767;
+    /** Bytes reserved for the length of each message, a padded varint. */
+    private static final int LENGTH_BYTES = 3;
+
+    /** MessageContext's constructor is package-private. */
+    private static final Constructor<MessageContext> CONTEXT = contextConstructor();
+
+    private static final List<BatchedChannel> channels = new CopyOnWriteArrayList<>();
+    private static final LongAdder messages = new LongAdder();
+    private static final LongAdder payloads = new LongAdder();
+
+    private final String name;
+    private final FMLEventChannel channel;
+    private final Int2ObjectOpenHashMap<Registration<?>> byDiscriminator = new Int2ObjectOpenHashMap<>();
+    private final Reference2IntOpenHashMap<Class<?>> discriminators = new Reference2IntOpenHashMap<>();
+    /** Messages queued per player, guarded by itself. */
+    private final Map<EntityPlayerMP, ByteBuf> pending = new WeakHashMap<>();
+    /** Messages queued for the server, and full payloads waiting for the client tick, guarded by pending. */
+    private final ByteBuf serverBound = Unpooled.buffer();
+    private final List<PacketBuffer> serverBoundReady = new ArrayList<>();
+
+    public BatchedChannel(String name) {
+        this.name = name;
+        this.channel = NetworkRegistry.INSTANCE.newEventDrivenChannel(name);
+        this.channel.register(this);
+        discriminators.defaultReturnValue(-1);
+        channels.add(this);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /** Registers a message type, handled on the given side. Discriminators are any non-negative int. */
+    @SuppressWarnings("unchecked")
+    public <REQ extends IMessage, REPLY extends IMessage> void registerMessage(IMessageHandler<? super REQ, ? extends REPLY> handler,
+                                                                            Class<REQ> type, int discriminator, Side side) {
+        if (discriminator < 0) {
+            throw new IllegalArgumentException("Negative discriminator " + discriminator + " for " + type.getName());
+        }
+        Registration<?> existing = byDiscriminator.get(discriminator);
+        if (existing != null && existing.type != type) {
+            throw new IllegalArgumentException("Discriminator " + discriminator + " of " + type.getName() + " already used by " + existing.type.getName());
+        }
+        if (existing == null) {
+            byDiscriminator.put(discriminator, new Registration<>(type));
+            discriminators.put(type, discriminator);
+        }
+        Registration<REQ> registration = (Registration<REQ>) byDiscriminator.get(discriminator);
+        if (side == Side.CLIENT) {
+            registration.clientHandler = (IMessageHandler<REQ, ?>) handler;
+        } else {
+            registration.serverHandler = (IMessageHandler<REQ, ?>) handler;
+        }
+    }
+
+    public void sendTo(IMessage message, EntityPlayerMP player) {
+        synchronized (pending) {
+            ByteBuf buffer = pending.computeIfAbsent(player, key -> Unpooled.buffer());
+            append(buffer, message, MAX_CLIENTBOUND, batch -> player.connection.sendPacket(payload(batch)));
+        }
+    }
+
+    public void sendToAll(IMessage message) {
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        for (EntityPlayerMP player : server.getPlayerList().getPlayers()) {
+            sendTo(message, player);
+        }
+    }
+
+    public void sendToDimension(IMessage message, int dimension) {
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        for (EntityPlayerMP player : server.getPlayerList().getPlayers()) {
+            if (player.dimension == dimension) {
+                sendTo(message, player);
+            }
+        }
+    }
+
+    /** Sends to the players within range of the point, like SimpleNetworkWrapper.sendToAllAround. */
+    public void sendToAllAround(IMessage message, NetworkRegistry.TargetPoint point) {
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        for (EntityPlayerMP player : server.getPlayerList().getPlayers()) {
+            if (player.dimension == point.dimension && player.getDistanceSq(point.x, point.y, point.z) < point.range * point.range) {
+                sendTo(message, player);
+            }
+        }
+    }
+
+    /** Sends to the players the entity is tracked by, the entity itself excluded. */
+    public void sendToAllTracking(IMessage message, Entity entity) {
+        if (entity.world instanceof WorldServer) {
+            for (EntityPlayer player : ((WorldServer) entity.world).getEntityTracker().getTrackingPlayers(entity)) {
+                sendTo(message, (EntityPlayerMP) player);
+            }
+        }
+    }
+
+    /** Sends to the players watching the chunk of the point, its range is ignored. */
+    public void sendToAllTracking(IMessage message, NetworkRegistry.TargetPoint point) {
+        WorldServer world = FMLCommonHandler.instance().getMinecraftServerInstance().getWorld(point.dimension);
+        int chunkX = (int) Math.floor(point.x) >> 4;
+        int chunkZ = (int) Math.floor(point.z) >> 4;
+        for (EntityPlayer player : world.playerEntities) {
+            if (world.getPlayerChunkMap().isPlayerWatchingChunk((EntityPlayerMP) player, chunkX, chunkZ)) {
+                sendTo(message, (EntityPlayerMP) player);
+            }
+        }
+    }
+
+    /** Queues a message for the server, only valid on the client. */
+    public void sendToServer(IMessage message) {
+        synchronized (pending) {
+            append(serverBound, message, MAX_SERVERBOUND, serverBoundReady::add);
+        }
+    }
+
+    /** Appends the message, first sending what the buffer holds with the given sender if the message would not fit. */
+    private void append(ByteBuf buffer, IMessage message, int maxPayload, Consumer<PacketBuffer> sender) {
+        int discriminator = discriminators.getInt(message.getClass());
+        if (discriminator < 0) {
+            throw new IllegalArgumentException("Unregistered message " + message.getClass().getName() + " on channel " + name);
+        }
+        int start = buffer.writerIndex();
+        new PacketBuffer(buffer).writeVarInt(discriminator);
+        int lengthIndex = buffer.writerIndex();
+        buffer.writeZero(LENGTH_BYTES);
+        try {
+            message.toBytes(buffer);
+        } catch (RuntimeException e) {
+            buffer.writerIndex(start);
+            throw e;
+        }
+        int length = buffer.writerIndex() - lengthIndex - LENGTH_BYTES;
+        if (length >= 1 << 7 * LENGTH_BYTES || buffer.writerIndex() - start > maxPayload) {
+            buffer.writerIndex(start);
+            throw new IllegalArgumentException("Message " + message.getClass().getName() + " is too large (" + length + " bytes)");
+        }
+        buffer.setByte(lengthIndex, 0x80 | length & 0x7F);
+        buffer.setByte(lengthIndex + 1, 0x80 | length >> 7 & 0x7F);
+        buffer.setByte(lengthIndex + 2, length >> 14);
+        messages.increment();
+        if (buffer.writerIndex() > maxPayload) {
+            // Send what came before and keep this message for the next payload
+            sender.accept(copy(buffer, 0, start));
+            buffer.readerIndex(start);
+            buffer.discardReadBytes();
+        }
+    }
+
+    /** Sends the messages queued for each player. */
+    private void flushPlayers() {
+        synchronized (pending) {
+            for (Map.Entry<EntityPlayerMP, ByteBuf> entry : pending.entrySet()) {
+                ByteBuf buffer = entry.getValue();
+                if (buffer.isReadable()) {
+                    entry.getKey().connection.sendPacket(payload(copy(buffer, 0, buffer.writerIndex())));
+                    buffer.clear();
+                }
+            }
+        }
+    }
+
+    /** Returns the payloads of the messages queued for the server and clears them, called by the client tick. */
+    public List<PacketBuffer> drainServerBound() {
+        synchronized (pending) {
+            if (serverBound.isReadable()) {
+                serverBoundReady.add(copy(serverBound, 0, serverBound.writerIndex()));
+                serverBound.clear();
+            }
+            if (serverBoundReady.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<PacketBuffer> batches = new ArrayList<>(serverBoundReady);
+            serverBoundReady.clear();
+            payloads.add(batches.size());
+            return batches;
+        }
+    }
+
+    private SPacketCustomPayload payload(PacketBuffer batch) {
+        payloads.increment();
+        return new SPacketCustomPayload(name, batch);
+    }
+
+    private static Constructor<MessageContext> contextConstructor() {
+        try {
+            Constructor<MessageContext> constructor = MessageContext.class.getDeclaredConstructor(INetHandler.class, Side.class);
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException("MessageContext has no (INetHandler, Side) constructor", e);
+        }
+    }
+
+    private static PacketBuffer copy(ByteBuf buffer, int from, int to) {
+        ByteBuf copy = Unpooled.buffer(to - from);
+        copy.writeBytes(buffer, from, to - from);
+        return new PacketBuffer(copy);
+    }
+
+    @SubscribeEvent
+    public void onClientPacket(FMLNetworkEvent.ClientCustomPacketEvent event) {
+        receive(event.getPacket().payload(), event.getHandler(), Side.CLIENT, null);
+    }
+
+    @SubscribeEvent
+    public void onServerPacket(FMLNetworkEvent.ServerCustomPacketEvent event) {
+        EntityPlayerMP player = ((NetHandlerPlayServer) event.getHandler()).player;
+        receive(event.getPacket().payload(), event.getHandler(), Side.SERVER, player);
+    }
+
+    private void receive(ByteBuf payload, INetHandler handler, Side side, @Nullable EntityPlayerMP sender) {
+        PacketBuffer in = new PacketBuffer(payload);
+        MessageContext context;
+        try {
+            context = CONTEXT.newInstance(handler, side);
+        } catch (ReflectiveOperationException e) {
+            Workshop.LOGGER.error("Unable to create the message context of channel {}", name, e);
+            return;
+        }
+        while (in.isReadable()) {
+            int discriminator = in.readVarInt();
+            ByteBuf data = in.readSlice(in.readVarInt());
+            Registration<?> registration = byDiscriminator.get(discriminator);
+            if (registration == null) {
+                Workshop.LOGGER.warn("Skipping unknown message {} on channel {}", discriminator, name);
+                continue;
+            }
+            try {
+                IMessage reply = registration.handle(data, context, side);
+                if (reply != null) {
+                    if (sender != null) {
+                        sendTo(reply, sender);
+                    } else {
+                        sendToServer(reply);
+                    }
+                }
+            } catch (Exception e) {
+                Workshop.LOGGER.error("Failed to handle message {} on channel {}", registration.type.getName(), name, e);
+            }
+        }
+    }
+
+    public static String describe() {
+        long payloadCount = payloads.sum();
+        return String.format("%d messages sent in %d payloads (%.1f per payload)", messages.sum(), payloadCount,
+                payloadCount == 0 ? 0 : messages.sum() / (double) payloadCount);
+    }
+
+    /** Before the flush batcher, so the payloads leave with this tick's flush. */
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END) {
+            for (BatchedChannel channel : channels) {
+                channel.flushPlayers();
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedOut(PlayerEvent.PlayerLoggedOutEvent event) {
+        for (BatchedChannel channel : channels) {
+            synchronized (channel.pending) {
+                channel.pending.remove(event.player);
+            }
+        }
+    }
+
+    public static List<BatchedChannel> getChannels() {
+        return new ArrayList<>(channels);
+    }
+
+    private static final class Registration<REQ extends IMessage> {
+
+        final Class<REQ> type;
+        final Constructor<REQ> constructor;
+        IMessageHandler<REQ, ?> clientHandler;
+        IMessageHandler<REQ, ?> serverHandler;
+
+        Registration(Class<REQ> type) {
+            this.type = type;
+            try {
+                this.constructor = type.getDeclaredConstructor();
+                this.constructor.setAccessible(true);
+            } catch (NoSuchMethodException e) {
+                throw new IllegalArgumentException("Message " + type.getName() + " has no default constructor", e);
+            }
+        }
+
+        @Nullable
+        IMessage handle(ByteBuf data, MessageContext context, Side side) throws Exception {
+            IMessageHandler<REQ, ?> handler = side == Side.CLIENT ? clientHandler : serverHandler;
+            if (handler == null) {
+                throw new IllegalStateException("No handler on the " + side + " side");
+            }
+            REQ message = constructor.newInstance();
+            message.fromBytes(data);
+            return handler.onMessage(message, context);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import io.netty.buffer.Unpooled;
+import net.minecraft.network.PacketBuffer;
+
+import javax.annotation.Nullable;
+
+/** Layout of the section data carried by SPacketChunkData, shared by both sides of the section cache. */
+public final class ChunkSections {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+    private static final int BIOMES_BYTES = 256;
+    private static final int LIGHT_BYTES = 2048;
+
+    private ChunkSections() {
+    }
+
+    public static long hash(byte[] data, int offset, int length) {
+        return HASH.hashBytes(data, offset, length).asLong();
+    }
+
+    /**
+     * Returns where each of the given number of sections ends in the packet's data, or null if the data does not have
+     * the expected layout. Whether sections carry sky light is not part of the packet, both layouts are tried.
+     */
+    @Nullable
+    public static int[] split(byte[] data, int sections, boolean fullChunk) {
+        int[] ends = split(data, sections, fullChunk, true);
+        return ends != null ? ends : split(data, sections, fullChunk, false);
+    }
+
+    @Nullable
+    private static int[] split(byte[] data, int sections, boolean fullChunk, boolean skyLight) {
+        PacketBuffer buffer = new PacketBuffer(Unpooled.wrappedBuffer(data));
+        int[] ends = new int[sections];
+        try {
+            for (int i = 0; i < sections; i++) {
+                buffer.readUnsignedByte();
+                // Palette entries, the global palette writes a count of 0
+                for (int entries = buffer.readVarInt(); entries > 0; entries--) {
+                    buffer.readVarInt();
+                }
+                buffer.skipBytes(buffer.readVarInt() * 8);
+                buffer.skipBytes(skyLight ? LIGHT_BYTES * 2 : LIGHT_BYTES);
+                ends[i] = buffer.readerIndex();
+            }
+        } catch (RuntimeException e) {
+            return null;
+        }
+        return buffer.readableBytes() == (fullChunk ? BIOMES_BYTES : 0) ? ends : null;
+    }
+}
@@ -0,0 +1,183 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import io.netty.util.concurrent.EventExecutorGroup;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NettyCompressionEncoder;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Deflater;
+
+/**
+ * Replacement for vanilla's packet compression stage.
+ * <p>
+ * Compression runs on a small Workshop executor group instead of the Netty event loop shared with other players, and
+ * reuses its buffers: the packet is copied once into a per-thread array and deflated straight into the heap output
+ * buffer, where vanilla allocates an array per packet and copies through an intermediate one. The Deflater level is
+ * configurable, the native Deflater is released when the connection closes and vanilla's unused one as soon as the stage
+ * is created.
+ * <p>
+ * Packets under the threshold negotiated at login are never compressed, since clients reject them. Above it, a
+ * connection using less bandwidth than network.compressionBandwidthKBps also sends packets up to
+ * network.adaptiveThreshold bytes uncompressed, saving CPU while the link has room to spare.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class CompressionEncoder extends NettyCompressionEncoder {
+
+    private static final Field PARENT_DEFLATER = Reflection.findField(NettyCompressionEncoder.class, "deflater", "field_179302_b");
+    private static final ThreadLocal<byte[]> INPUT = ThreadLocal.withInitial(() -> new byte[8192]);
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private static EventExecutorGroup executors;
+    private static final LongAdder bytesIn = new LongAdder();
+    private static final LongAdder bytesOut = new LongAdder();
+    private static final LongAdder compressed = new LongAdder();
+    private static final LongAdder skipped = new LongAdder();
+
+    private final Deflater deflater;
+    private volatile int threshold;
+    /** Compression thread only. */
+    private long windowStart = System.nanoTime();
+    private long windowBytes;
+    private double bytesPerSecond;
+
+    public CompressionEncoder(int threshold) {
+        super(threshold);
+        this.threshold = threshold;
+        this.deflater = new Deflater(WorkshopConfig.network.compressionLevel);
+        endParentDeflater();
+    }
+
+    /** The Deflater created by vanilla's constructor is never used, release its native memory right away. */
+    private void endParentDeflater() {
+        if (PARENT_DEFLATER == null) {
+            return;
+        }
+        try {
+            ((Deflater) PARENT_DEFLATER.get(this)).end();
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to release the vanilla packet Deflater", e);
+        }
+    }
+
+    @Override
+    public void setCompressionThreshold(int threshold) {
+        this.threshold = threshold;
+    }
+
+    @Override
+    protected ByteBuf allocateBuffer(ChannelHandlerContext ctx, ByteBuf msg, boolean preferDirect) {
+        // Heap, so the Deflater can write into the backing array
+        return ctx.alloc().heapBuffer(msg.readableBytes() + 8);
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, ByteBuf in, ByteBuf out) throws Exception {
+        int size = in.readableBytes();
+        PacketBuffer buffer = new PacketBuffer(out);
+        bytesIn.add(size);
+        if (size < effectiveThreshold()) {
+            if (size >= threshold) {
+                skipped.increment();
+            }
+            buffer.writeVarInt(0);
+            buffer.writeBytes(in);
+        } else {
+            buffer.writeVarInt(size);
+            byte[] input = INPUT.get();
+            if (input.length < size) {
+                input = new byte[Integer.highestOneBit(size - 1) << 1];
+                INPUT.set(input);
+            }
+            in.readBytes(input, 0, size);
+            deflater.setInput(input, 0, size);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.ensureWritable(Math.max(256, size >> 2));
+                int written = deflater.deflate(out.array(), out.arrayOffset() + out.writerIndex(), out.writableBytes());
+                out.writerIndex(out.writerIndex() + written);
+            }
+            deflater.reset();
+            compressed.increment();
+        }
+        bytesOut.add(out.readableBytes());
+        track(out.readableBytes());
+    }
+
+    private int effectiveThreshold() {
+        int adaptive = WorkshopConfig.network.adaptiveThreshold;
+        int budget = WorkshopConfig.network.compressionBandwidthKBps;
+        if (budget > 0 && adaptive > threshold && bytesPerSecond < budget * 1024.0) {
+            return adaptive;
+        }
+        return threshold;
+    }
+
+    private void track(int bytes) {
+        windowBytes += bytes;
+        long now = System.nanoTime();
+        long elapsed = now - windowStart;
+        if (elapsed >= WINDOW_NANOS) {
+            bytesPerSecond = windowBytes * 1e9 / elapsed;
+            windowBytes = 0;
+            windowStart = now;
+        }
+    }
+
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        deflater.end();
+        super.handlerRemoved(ctx);
+    }
+
+    public static String describe() {
+        long in = bytesIn.sum();
+        return String.format("%d packets compressed, %d sent raw by the adaptive threshold, %.1f%% of %d KiB",
+                compressed.sum(), skipped.sum(), in == 0 ? 100 : bytesOut.sum() * 100.0 / in, in / 1024);
+    }
+
+    private static synchronized EventExecutorGroup executors() {
+        if (executors == null) {
+            executors = new DefaultEventExecutorGroup(WorkshopConfig.network.compressionThreads,
+                    new DefaultThreadFactory("Workshop Packet Compressor", true));
+        }
+        return executors;
+    }
+
+    /** Replaces the vanilla compression stage set up at login. */
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        if (!(event.player instanceof EntityPlayerMP) || WorkshopConfig.network.compressionThreads <= 0) {
+            return;
+        }
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        int threshold = server.getNetworkCompressionThreshold();
+        Channel channel = ((EntityPlayerMP) event.player).connection.netManager.channel();
+        channel.eventLoop().execute(() -> {
+            ChannelPipeline pipeline = channel.pipeline();
+            ChannelHandler current = pipeline.get("compress");
+            if (threshold < 0 || current == null || current.getClass() != NettyCompressionEncoder.class || pipeline.get("encoder") == null) {
+                return;
+            }
+            pipeline.remove("compress");
+            pipeline.addBefore(executors(), "encoder", "compress", new CompressionEncoder(threshold));
+        });
+    }
+}
@@ -0,0 +1,133 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import io.netty.util.concurrent.ScheduledFuture;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.play.server.SPacketDisconnect;
+import net.minecraft.network.play.server.SPacketKeepAlive;
+import net.minecraft.server.MinecraftServer;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Holds back the flush NetworkManager issues after every packet sent to a player, so that everything written during a
+ * server tick leaves in one flush at the end of the tick instead of one syscall per packet.
+ * <p>
+ * The handler sits right before packet_handler, where it still sees packets rather than bytes. Keep-alives and
+ * disconnects are flushed right away. Packets written outside of the tick (chat from other threads for example) are
+ * flushed at most maxFlushDelayMillis later. Only connections in the play state get the handler, login is unaffected.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class FlushBatcher extends ChannelOutboundHandlerAdapter {
+
+    public static final String NAME = "workshop:flush_batcher";
+
+    private static final LongAdder requested = new LongAdder();
+    private static final LongAdder performed = new LongAdder();
+
+    /** Event loop only. */
+    private ChannelHandlerContext context;
+    private boolean pending;
+    private boolean urgent;
+    private ScheduledFuture<?> deadline;
+    private final Runnable flushTask = this::flushPending;
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) {
+        this.context = ctx;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof SPacketKeepAlive || msg instanceof SPacketDisconnect) {
+            urgent = true;
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    @Override
+    public void flush(ChannelHandlerContext ctx) throws Exception {
+        requested.increment();
+        if (urgent || !WorkshopConfig.network.batchFlushes) {
+            flushNow(ctx);
+            return;
+        }
+        pending = true;
+        if (deadline == null) {
+            deadline = ctx.executor().schedule(flushTask, WorkshopConfig.network.maxFlushDelayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPending() {
+        if (pending && context != null) {
+            flushNow(context);
+        }
+        deadline = null;
+    }
+
+    private void flushNow(ChannelHandlerContext ctx) {
+        pending = false;
+        urgent = false;
+        if (deadline != null) {
+            deadline.cancel(false);
+            deadline = null;
+        }
+        performed.increment();
+        ctx.flush();
+    }
+
+    @Override
+    public void close(ChannelHandlerContext ctx, ChannelPromise promise) throws Exception {
+        // Whatever was held back, a disconnect message in particular, must go out before the channel closes
+        if (pending) {
+            flushNow(ctx);
+        }
+        super.close(ctx, promise);
+    }
+
+    public static String describe() {
+        long asked = requested.sum();
+        return String.format("%d flushes requested, %d performed (%.1f%% saved)", asked, performed.sum(),
+                asked == 0 ? 0 : (asked - performed.sum()) * 100.0 / asked);
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        if (!(event.player instanceof EntityPlayerMP)) {
+            return;
+        }
+        Channel channel = ((EntityPlayerMP) event.player).connection.netManager.channel();
+        channel.eventLoop().execute(() -> {
+            if (channel.isOpen() && channel.pipeline().get(NAME) == null && channel.pipeline().get("packet_handler") != null) {
+                channel.pipeline().addBefore("packet_handler", NAME, new FlushBatcher());
+            }
+        });
+    }
+
+    /** Flushes what every player connection held back during the tick. */
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+        for (EntityPlayerMP player : server.getPlayerList().getPlayers()) {
+            Channel channel = player.connection.netManager.channel();
+            FlushBatcher batcher = (FlushBatcher) channel.pipeline().get(NAME);
+            if (batcher != null) {
+                channel.eventLoop().execute(batcher.flushTask);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.EnumConnectionState;
+import net.minecraft.network.EnumPacketDirection;
+import net.minecraft.network.NettyPacketEncoder;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.Packet;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+
+import java.io.IOException;
+
+/**
+ * Replacement for vanilla's packet encoder, identical except that packets are written through a
+ * {@link WorkshopPacketBuffer}. Only installed over the plain vanilla encoder.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class PacketEncoder extends NettyPacketEncoder {
+
+    private final EnumPacketDirection direction;
+
+    public PacketEncoder(EnumPacketDirection direction) {
+        super(direction);
+        this.direction = direction;
+    }
+
+    @Override
+    protected void encode(ChannelHandlerContext ctx, Packet<?> packet, ByteBuf out) throws Exception {
+        EnumConnectionState state = ctx.channel().attr(NetworkManager.PROTOCOL_ATTRIBUTE_KEY).get();
+        if (state == null) {
+            throw new RuntimeException("ConnectionProtocol unknown: " + packet);
+        }
+        Integer id = state.getPacketId(direction, packet);
+        if (id == null) {
+            throw new IOException("Can't serialize unregistered packet");
+        }
+        WorkshopPacketBuffer buffer = new WorkshopPacketBuffer(out);
+        buffer.writeVarInt(id);
+        try {
+            packet.writePacketData(buffer);
+        } catch (Throwable t) {
+            // Logged and dropped, like vanilla
+            Workshop.LOGGER.error("Failed to encode packet {}", packet.getClass().getName(), t);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        if (!(event.player instanceof EntityPlayerMP) || !WorkshopConfig.network.directEncoding) {
+            return;
+        }
+        Channel channel = ((EntityPlayerMP) event.player).connection.netManager.channel();
+        channel.eventLoop().execute(() -> {
+            ChannelPipeline pipeline = channel.pipeline();
+            ChannelHandler current = pipeline.get("encoder");
+            if (current != null && current.getClass() == NettyPacketEncoder.class) {
+                pipeline.replace("encoder", "encoder", new PacketEncoder(EnumPacketDirection.CLIENTBOUND));
+            }
+        });
+    }
+}
@@ -0,0 +1,154 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelOutboundHandlerAdapter;
+import io.netty.channel.ChannelPromise;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.NetworkManager;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.server.SPacketChunkData;
+import net.minecraft.network.play.server.SPacketCustomPayload;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.PlayerEvent;
+
+import javax.annotation.Nullable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends chunk data to Workshop clients with the sections they already have replaced by a hash.
+ * <p>
+ * Both ends keep an LRU cache of sections by content hash with the same capacity: the client stores the sections,
+ * the server only mirrors which hashes the client holds. Every section of a chunk packet updates both caches in the
+ * same order (a hit refreshes the entry, a miss inserts it and evicts the eldest), so the server always knows whether
+ * the client can resolve a hash. Clients without Workshop never get this handler and receive vanilla packets.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class SectionCacheEncoder extends ChannelOutboundHandlerAdapter {
+
+    public static final String NAME = "workshop:section_cache";
+    /** Largest payload accepted by SPacketCustomPayload. */
+    private static final int MAX_PAYLOAD = 1048576;
+    /** Section markers and lengths added on top of the vanilla data, at most 16 sections of 6 bytes each. */
+    private static final int MAX_OVERHEAD = 128;
+
+    private static final LongAdder sectionsSent = new LongAdder();
+    private static final LongAdder sectionsReused = new LongAdder();
+    private static final LongAdder bytesSaved = new LongAdder();
+
+    private final int capacity;
+    /** Hashes held by the client, event loop only. */
+    private final Map<Long, Boolean> mirror;
+    private boolean configured;
+
+    public SectionCacheEncoder(int capacity) {
+        this.capacity = capacity;
+        this.mirror = new LinkedHashMap<Long, Boolean>(capacity, 0.75F, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > SectionCacheEncoder.this.capacity;
+            }
+        };
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof SPacketChunkData) {
+            SPacketCustomPayload cached = encode((SPacketChunkData) msg);
+            if (cached != null) {
+                if (!configured) {
+                    PacketBuffer config = new PacketBuffer(Unpooled.buffer(8));
+                    config.writeByte(WorkshopNetwork.SECTION_CACHE_CONFIG);
+                    config.writeVarInt(capacity);
+                    ctx.write(new SPacketCustomPayload(WorkshopNetwork.CHANNEL, config));
+                    configured = true;
+                }
+                msg = cached;
+            }
+        }
+        super.write(ctx, msg, promise);
+    }
+
+    /** Returns the cached form of the packet, or null if it must be sent as is. */
+    @Nullable
+    private SPacketCustomPayload encode(SPacketChunkData packet) throws Exception {
+        PacketBuffer in = new PacketBuffer(Unpooled.buffer());
+        packet.writePacketData(in);
+        if (in.readableBytes() + MAX_OVERHEAD > MAX_PAYLOAD) {
+            return null;
+        }
+        int x = in.readInt();
+        int z = in.readInt();
+        boolean fullChunk = in.readBoolean();
+        int mask = in.readVarInt();
+        int length = in.readVarInt();
+        if (length < 0 || length > in.readableBytes()) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readBytes(data);
+        int[] ends = ChunkSections.split(data, Integer.bitCount(mask), fullChunk);
+        if (ends == null) {
+            return null;
+        }
+
+        // Nothing may fail past this point, the mirror must only change for packets actually sent
+        PacketBuffer out = new PacketBuffer(Unpooled.buffer(in.writerIndex() + MAX_OVERHEAD));
+        out.writeByte(WorkshopNetwork.CACHED_CHUNK);
+        out.writeInt(x);
+        out.writeInt(z);
+        out.writeBoolean(fullChunk);
+        out.writeVarInt(mask);
+        int start = 0;
+        for (int end : ends) {
+            long hash = ChunkSections.hash(data, start, end - start);
+            if (mirror.get(hash) != null) {
+                out.writeBoolean(true);
+                out.writeLong(hash);
+                sectionsReused.increment();
+                bytesSaved.add(end - start - 8);
+            } else {
+                mirror.put(hash, Boolean.TRUE);
+                out.writeBoolean(false);
+                out.writeVarInt(end - start);
+                out.writeBytes(data, start, end - start);
+                sectionsSent.increment();
+            }
+            start = end;
+        }
+        // Biomes, then the tile entities following the data
+        out.writeBytes(data, start, length - start);
+        out.writeBytes(in);
+        return new SPacketCustomPayload(WorkshopNetwork.CHANNEL, out);
+    }
+
+    public static String describe() {
+        long reused = sectionsReused.sum();
+        long total = reused + sectionsSent.sum();
+        return String.format("%d sections sent, %d from client caches (%.1f%%), %d KiB saved",
+                total, reused, total == 0 ? 0 : reused * 100.0 / total, bytesSaved.sum() / 1024);
+    }
+
+    @SubscribeEvent
+    public static void onPlayerLoggedIn(PlayerEvent.PlayerLoggedInEvent event) {
+        int capacity = WorkshopConfig.network.sectionCacheEntries;
+        if (!(event.player instanceof EntityPlayerMP) || capacity <= 0) {
+            return;
+        }
+        NetworkManager manager = ((EntityPlayerMP) event.player).connection.netManager;
+        if (!manager.isLocalChannel() && WorkshopNetwork.hasWorkshop(manager)) {
+            Channel channel = manager.channel();
+            channel.eventLoop().execute(() -> {
+                if (channel.isOpen() && channel.pipeline().get(NAME) == null && channel.pipeline().get("packet_handler") != null) {
+                    channel.pipeline().addBefore("packet_handler", NAME, new SectionCacheEncoder(capacity));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.github.dred974.workshop.workshop.network;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import net.minecraft.network.NetworkManager;
+import net.minecraftforge.fml.common.network.FMLEventChannel;
+import net.minecraftforge.fml.common.network.NetworkRegistry;
+import net.minecraftforge.fml.common.network.handshake.NetworkDispatcher;
+
+/**
+ * The Workshop plugin channel, used to talk to clients that have Workshop installed. Every payload starts with a
+ * message type byte. Clients without Workshop never receive anything on it.
+ * <p>
+ * Small gameplay messages go through the {@link #messages()} batched channel instead, one payload per tick.
+ */
+public final class WorkshopNetwork {
+
+    public static final String CHANNEL = Workshop.MOD_ID;
+
+    /** Server to client: resets the client's section cache to the given capacity. */
+    public static final int SECTION_CACHE_CONFIG = 0;
+    /** Server to client: chunk data whose unchanged sections are replaced by references into the section cache. */
+    public static final int CACHED_CHUNK = 1;
+
+    public static final String MESSAGES_CHANNEL = Workshop.MOD_ID + ":msg";
+
+    private static FMLEventChannel channel;
+    private static BatchedChannel messages;
+
+    private WorkshopNetwork() {
+    }
+
+    public static void init() {
+        channel = NetworkRegistry.INSTANCE.newEventDrivenChannel(CHANNEL);
+        messages = new BatchedChannel(MESSAGES_CHANNEL);
+    }
+
+    /** The Workshop plugin channel, the client listens on it once it first connects to a server. */
+    public static FMLEventChannel channel() {
+        return channel;
+    }
+
+    /** Channel Workshop's own messages are registered on. */
+    public static BatchedChannel messages() {
+        return messages;
+    }
+
+    /** True if the remote end of the connection completed the FML handshake with Workshop installed. */
+    public static boolean hasWorkshop(NetworkManager manager) {
+        NetworkDispatcher dispatcher = NetworkDispatcher.get(manager);
+        return dispatcher != null && dispatcher.getModList().containsKey(Workshop.MOD_ID);
+    }
+}
@@ -0,0 +1,36 @@
+package com.github.dred974.workshop.workshop.network.client;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.network.BatchedChannel;
+import net.minecraft.client.Minecraft;
+import net.minecraft.client.network.NetHandlerPlayClient;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.client.CPacketCustomPayload;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+import net.minecraftforge.fml.relauncher.Side;
+
+/** Client end of the batched channels: sends the messages queued for the server once per client tick. */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID, value = Side.CLIENT)
+public final class BatchedChannelClient {
+
+    private BatchedChannelClient() {
+    }
+
+    @SubscribeEvent
+    public static void onClientTick(TickEvent.ClientTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        NetHandlerPlayClient connection = Minecraft.getMinecraft().getConnection();
+        for (BatchedChannel channel : BatchedChannel.getChannels()) {
+            for (PacketBuffer batch : channel.drainServerBound()) {
+                // Dropped when not connected, like packets sent without a connection
+                if (connection != null) {
+                    connection.sendPacket(new CPacketCustomPayload(channel.getName(), batch));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.github.dred974.workshop.workshop.network.client;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.network.ChunkSections;
+import com.github.dred974.workshop.workshop.network.WorkshopNetwork;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import net.minecraft.client.network.NetHandlerPlayClient;
+import net.minecraft.network.PacketBuffer;
+import net.minecraft.network.play.server.SPacketChunkData;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.network.FMLNetworkEvent;
+import net.minecraftforge.fml.relauncher.Side;
+import net.minecraftforge.fml.relauncher.SideOnly;
+
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Client end of the section cache: keeps the sections received from the server by content hash, and rebuilds vanilla
+ * chunk packets from the cached chunks the server sends. Must stay in step with the server's mirror, see
+ * SectionCacheEncoder. Runs on the network thread, the rebuilt packets are handed to the client thread like any
+ * other.
+ * <p>
+ * Registered on the plugin channel when the client first connects to a server, so dedicated servers never load it.
+ */
+@SideOnly(Side.CLIENT)
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID, value = Side.CLIENT)
+public class SectionCacheClient {
+
+    private static boolean registered;
+
+    private Map<Long, byte[]> sections;
+
+    @SubscribeEvent
+    public static void onConnected(FMLNetworkEvent.ClientConnectedToServerEvent event) {
+        synchronized (SectionCacheClient.class) {
+            if (!registered) {
+                WorkshopNetwork.channel().register(new SectionCacheClient());
+                registered = true;
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public void onClientPacket(FMLNetworkEvent.ClientCustomPacketEvent event) {
+        ByteBuf payload = event.getPacket().payload();
+        int type = payload.readUnsignedByte();
+        PacketBuffer in = new PacketBuffer(payload);
+        if (type == WorkshopNetwork.SECTION_CACHE_CONFIG) {
+            int capacity = in.readVarInt();
+            sections = new LinkedHashMap<Long, byte[]>(capacity, 0.75F, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                    return size() > capacity;
+                }
+            };
+        } else if (type == WorkshopNetwork.CACHED_CHUNK) {
+            try {
+                SPacketChunkData packet = decode(in);
+                if (packet != null) {
+                    packet.processPacket((NetHandlerPlayClient) event.getHandler());
+                }
+            } catch (IOException e) {
+                Workshop.LOGGER.error("Failed to read cached chunk data", e);
+            }
+        }
+    }
+
+    @Nullable
+    private SPacketChunkData decode(PacketBuffer in) throws IOException {
+        int x = in.readInt();
+        int z = in.readInt();
+        boolean fullChunk = in.readBoolean();
+        int mask = in.readVarInt();
+        if (sections == null) {
+            Workshop.LOGGER.error("Received cached chunk [{}, {}] before the section cache was set up", x, z);
+            return null;
+        }
+        ByteBuf data = Unpooled.buffer(Integer.bitCount(mask) * 8192 + 256);
+        boolean complete = true;
+        // Every section must be read, even after a miss, to keep the cache in step with the server
+        for (int i = Integer.bitCount(mask); i > 0; i--) {
+            if (in.readBoolean()) {
+                byte[] section = sections.get(in.readLong());
+                if (section == null) {
+                    complete = false;
+                } else {
+                    data.writeBytes(section);
+                }
+            } else {
+                byte[] section = new byte[in.readVarInt()];
+                in.readBytes(section);
+                sections.put(ChunkSections.hash(section, 0, section.length), section);
+                data.writeBytes(section);
+            }
+        }
+        if (!complete) {
+            Workshop.LOGGER.error("Section cache out of sync with the server at chunk [{}, {}]", x, z);
+            return null;
+        }
+        if (fullChunk) {
+            data.writeBytes(in, 256);
+        }
+
+        PacketBuffer vanilla = new PacketBuffer(Unpooled.buffer(data.readableBytes() + in.readableBytes() + 32));
+        vanilla.writeInt(x);
+        vanilla.writeInt(z);
+        vanilla.writeBoolean(fullChunk);
+        vanilla.writeVarInt(mask);
+        vanilla.writeVarInt(data.readableBytes());
+        vanilla.writeBytes(data);
+        vanilla.writeBytes(in);
+        SPacketChunkData packet = new SPacketChunkData();
+        packet.readPacketData(vanilla);
+        return packet;
+    }
+}
@@ -0,0 +1,50 @@
+package com.github.dred974.workshop.workshop.profiler;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.entity.Entity;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.util.ArrayList;
+import java.util.Collection;
+
+/**
+ * Loaded entity list of a server world that tells the {@link TickProfiler} which entity is being ticked.
+ * World.updateEntities walks the list by index, so every get publishes the entity it returns.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class ProfiledEntityList extends ArrayList<Entity> {
+
+    private static final long serialVersionUID = 1L;
+
+    public ProfiledEntityList(Collection<Entity> entities) {
+        super(entities);
+    }
+
+    @Override
+    public Entity get(int index) {
+        Entity entity = super.get(index);
+        TickProfiler.setTicking(entity);
+        return entity;
+    }
+
+    /**
+     * Swaps the plain loaded entity list of a server world, leaving lists installed by other mods alone. Not installed
+     * while the profiler is disabled, since nothing would read what it publishes.
+     */
+    @SubscribeEvent
+    public static void onWorldLoad(WorldEvent.Load event) {
+        World world = event.getWorld();
+        if (!WorkshopConfig.profiler.enabled || !(world instanceof WorldServer) || world.loadedEntityList.getClass() != ArrayList.class) {
+            return;
+        }
+        if (!Reflection.setField(World.class, world, new ProfiledEntityList(world.loadedEntityList), "loadedEntityList", "field_72996_f")) {
+            Workshop.LOGGER.warn("Could not install the profiled entity list in dimension {}", world.provider.getDimension());
+        }
+    }
+}
@@ -0,0 +1,359 @@
+package com.github.dred974.workshop.workshop.profiler;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.EntityList;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.util.math.BlockPos;
+import net.minecraftforge.fml.common.Loader;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.ModContainer;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Always-on sampling profiler of the server thread.
+ * <p>
+ * A daemon thread takes a stack trace of the server thread at a fixed interval while a tick is running. Each sample
+ * is attributed to the mod owning the innermost mod frame and, when taken while the world ticks entities or tile
+ * entities, to the type and chunk of the object being ticked, as published by the tick lists through
+ * {@link #setTicking}. Samples and tick times are kept in one bucket per second over the last {@link #WINDOW_SECONDS}
+ * seconds, and can be exported as collapsed stacks for flame graph tools.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class TickProfiler {
+
+    public static final int WINDOW_SECONDS = 60;
+    /** Upper bounds of the tick time histogram, in milliseconds. */
+    private static final int[] TICK_BUCKETS = {10, 25, 50, 100};
+    private static final int MAX_STACK_DEPTH = 96;
+
+    private static volatile TickProfiler instance;
+    private static volatile Thread serverThread;
+    private static volatile boolean inTick;
+    private static volatile Object ticking;
+    private static long tickStart;
+
+    private final Thread sampler;
+    private final Second[] seconds = new Second[WINDOW_SECONDS];
+    /** Class name to owning mod, sampler thread only. */
+    private final Map<String, String> modByClass = new HashMap<>();
+    private final Map<String, String> modByPackage = new HashMap<>();
+    private volatile boolean running = true;
+
+    private TickProfiler() {
+        for (int i = 0; i < WINDOW_SECONDS; i++) {
+            seconds[i] = new Second();
+        }
+        for (ModContainer mod : Loader.instance().getActiveModList()) {
+            if (!mod.getModId().equals("minecraft") && !mod.getModId().equals("forge") && !mod.getModId().equals("FML")) {
+                for (String owned : mod.getOwnedPackages()) {
+                    modByPackage.put(owned, mod.getModId());
+                }
+            }
+        }
+        this.sampler = new Thread(this::run, "Workshop Tick Sampler");
+        sampler.setDaemon(true);
+    }
+
+    public static void start() {
+        if (WorkshopConfig.profiler.enabled) {
+            instance = new TickProfiler();
+            instance.sampler.start();
+        }
+    }
+
+    public static void stop() {
+        TickProfiler profiler = instance;
+        instance = null;
+        if (profiler != null) {
+            profiler.running = false;
+            profiler.sampler.interrupt();
+        }
+    }
+
+    @Nullable
+    public static TickProfiler get() {
+        return instance;
+    }
+
+    /** Publishes the entity or tile entity the server thread is about to tick, null once done. */
+    public static void setTicking(@Nullable Object target) {
+        ticking = target;
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                Thread.sleep(WorkshopConfig.profiler.sampleIntervalMillis);
+            } catch (InterruptedException e) {
+                return;
+            }
+            Thread thread = serverThread;
+            if (thread != null && inTick) {
+                Object target = ticking;
+                StackTraceElement[] stack = thread.getStackTrace();
+                // The tick may have ended while the stack was being taken
+                if (inTick && stack.length > 0) {
+                    record(stack, target);
+                }
+            }
+        }
+    }
+
+    private void record(StackTraceElement[] stack, @Nullable Object target) {
+        String type = null;
+        String chunk = null;
+        if (target != null && isUpdatingEntities(stack)) {
+            if (target instanceof TileEntity) {
+                TileEntity tileEntity = (TileEntity) target;
+                ResourceLocation key = TileEntity.getKey(tileEntity.getClass());
+                type = "tile " + (key == null ? tileEntity.getClass().getName() : key.toString());
+                BlockPos pos = tileEntity.getPos();
+                chunk = chunkName(tileEntity.getWorld() == null ? 0 : tileEntity.getWorld().provider.getDimension(), pos.getX() >> 4, pos.getZ() >> 4);
+            } else if (target instanceof Entity) {
+                Entity entity = (Entity) target;
+                ResourceLocation key = entity instanceof EntityPlayer ? null : EntityList.getKey(entity);
+                type = "entity " + (key == null ? entity.getClass().getSimpleName() : key.toString());
+                chunk = chunkName(entity.dimension, entity.chunkCoordX, entity.chunkCoordZ);
+            }
+        }
+        String mod = "minecraft";
+        for (StackTraceElement frame : stack) {
+            String owner = modOf(frame.getClassName());
+            if (owner != null) {
+                mod = owner;
+                break;
+            }
+        }
+        String collapsed = collapse(stack, type);
+        Second second = current();
+        synchronized (second) {
+            second.samples++;
+            increment(second.byMod, mod);
+            if (type != null) {
+                increment(second.byType, type);
+                increment(second.byChunk, chunk);
+            }
+            increment(second.stacks, collapsed);
+        }
+    }
+
+    /** True if the stack is inside World.updateEntities, where the published target is meaningful. */
+    private static boolean isUpdatingEntities(StackTraceElement[] stack) {
+        for (StackTraceElement frame : stack) {
+            String method = frame.getMethodName();
+            if (method.equals("updateEntities") || method.equals("func_72939_s")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Nullable
+    private String modOf(String className) {
+        String mod = modByClass.get(className);
+        if (mod == null && !modByClass.containsKey(className)) {
+            int dot = className.lastIndexOf('.');
+            mod = dot < 0 ? null : modByPackage.get(className.substring(0, dot));
+            modByClass.put(className, mod);
+        }
+        return mod;
+    }
+
+    /** Root first, frames separated by semicolons, with the ticked type as an extra root frame. */
+    private static String collapse(StackTraceElement[] stack, @Nullable String type) {
+        StringBuilder builder = new StringBuilder(stack.length * 48);
+        if (type != null) {
+            builder.append(type.replace(' ', '_').replace(';', '_')).append(';');
+        }
+        int depth = Math.min(stack.length, MAX_STACK_DEPTH);
+        for (int i = depth - 1; i >= 0; i--) {
+            builder.append(stack[i].getClassName()).append('.').append(stack[i].getMethodName());
+            if (i > 0) {
+                builder.append(';');
+            }
+        }
+        return builder.toString();
+    }
+
+    private static String chunkName(int dimension, int x, int z) {
+        return "dim " + dimension + " [" + x + ", " + z + "]";
+    }
+
+    private static void increment(Map<String, int[]> counts, String key) {
+        int[] count = counts.get(key);
+        if (count == null) {
+            counts.put(key, new int[]{1});
+        } else {
+            count[0]++;
+        }
+    }
+
+    /** Returns the bucket of the current second, clearing it first if it still holds older data. */
+    private Second current() {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Second second = seconds[(int) (now % WINDOW_SECONDS)];
+        synchronized (second) {
+            if (second.time != now) {
+                second.reset(now);
+            }
+        }
+        return second;
+    }
+
+    /** Merges the buckets of the last given seconds. */
+    public Report report(int windowSeconds) {
+        long now = TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis());
+        Report report = new Report();
+        for (Second second : seconds) {
+            synchronized (second) {
+                if (now - second.time >= windowSeconds || second.time > now) {
+                    continue;
+                }
+                report.samples += second.samples;
+                report.ticks += second.ticks;
+                report.tickNanos += second.tickNanos;
+                for (int i = 0; i < report.tickHistogram.length; i++) {
+                    report.tickHistogram[i] += second.tickHistogram[i];
+                }
+                merge(report.byType, second.byType);
+                merge(report.byChunk, second.byChunk);
+                merge(report.byMod, second.byMod);
+                merge(report.stacks, second.stacks);
+            }
+        }
+        return report;
+    }
+
+    private static void merge(Map<String, int[]> into, Map<String, int[]> from) {
+        for (Map.Entry<String, int[]> entry : from.entrySet()) {
+            int[] count = into.get(entry.getKey());
+            if (count == null) {
+                into.put(entry.getKey(), new int[]{entry.getValue()[0]});
+            } else {
+                count[0] += entry.getValue()[0];
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            serverThread = Thread.currentThread();
+            tickStart = System.nanoTime();
+            inTick = true;
+            return;
+        }
+        inTick = false;
+        ticking = null;
+        TickProfiler profiler = instance;
+        if (profiler == null) {
+            return;
+        }
+        long nanos = System.nanoTime() - tickStart;
+        long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+        int bucket = 0;
+        while (bucket < TICK_BUCKETS.length && millis >= TICK_BUCKETS[bucket]) {
+            bucket++;
+        }
+        Second second = profiler.current();
+        synchronized (second) {
+            second.ticks++;
+            second.tickNanos += nanos;
+            second.tickHistogram[bucket]++;
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        ticking = null;
+    }
+
+    private static final class Second {
+
+        long time = -1;
+        int samples;
+        int ticks;
+        long tickNanos;
+        final int[] tickHistogram = new int[TICK_BUCKETS.length + 1];
+        final Map<String, int[]> byType = new HashMap<>();
+        final Map<String, int[]> byChunk = new HashMap<>();
+        final Map<String, int[]> byMod = new HashMap<>();
+        final Map<String, int[]> stacks = new HashMap<>();
+
+        void reset(long time) {
+            this.time = time;
+            samples = 0;
+            ticks = 0;
+            tickNanos = 0;
+            Arrays.fill(tickHistogram, 0);
+            byType.clear();
+            byChunk.clear();
+            byMod.clear();
+            stacks.clear();
+        }
+    }
+
+    /** Merged view of the last seconds. Share of main thread time is estimated as samples over total samples. */
+    public static final class Report {
+
+        public int samples;
+        public int ticks;
+        public long tickNanos;
+        public final int[] tickHistogram = new int[TICK_BUCKETS.length + 1];
+        public final Map<String, int[]> byType = new HashMap<>();
+        public final Map<String, int[]> byChunk = new HashMap<>();
+        public final Map<String, int[]> byMod = new HashMap<>();
+        final Map<String, int[]> stacks = new HashMap<>();
+
+        /** Returns the largest entries of a breakdown, as "name: share%". */
+        public static List<String> top(Map<String, int[]> counts, int samples, int limit) {
+            List<Map.Entry<String, int[]>> entries = new ArrayList<>(counts.entrySet());
+            entries.sort((a, b) -> b.getValue()[0] - a.getValue()[0]);
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, int[]> entry : entries.subList(0, Math.min(limit, entries.size()))) {
+                lines.add(String.format("%s: %.1f%%", entry.getKey(), entry.getValue()[0] * 100.0 / Math.max(1, samples)));
+            }
+            return lines;
+        }
+
+        public static String histogramLabel(int bucket) {
+            if (bucket == 0) {
+                return "<" + TICK_BUCKETS[0] + "ms";
+            }
+            if (bucket == TICK_BUCKETS.length) {
+                return ">=" + TICK_BUCKETS[bucket - 1] + "ms";
+            }
+            return TICK_BUCKETS[bucket - 1] + "-" + TICK_BUCKETS[bucket] + "ms";
+        }
+
+        /** Writes the samples as collapsed stacks ("frame;frame;frame count" per line), readable by flamegraph.pl. */
+        public void writeCollapsed(File file) throws IOException {
+            Files.createDirectories(file.getParentFile().toPath());
+            try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+                for (Map.Entry<String, int[]> entry : stacks.entrySet()) {
+                    out.print(entry.getKey());
+                    out.print(' ');
+                    out.println(entry.getValue()[0]);
+                }
+            }
+        }
+    }
+}
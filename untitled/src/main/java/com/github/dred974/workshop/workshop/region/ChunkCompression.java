@@ -0,0 +1,117 @@
+package com.github.dred974.workshop.workshop.region;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Compression of a chunk payload inside a region file. The id is the version byte stored in front of every chunk,
+ * so chunks written with different codecs can live in the same region and old chunks always stay readable.
+ * Only GZIP and DEFLATE are understood by vanilla and external tools.
+ */
+public enum ChunkCompression {
+
+    GZIP(1) {
+        @Override
+        InputStream decompress(byte[] data, int length) throws IOException {
+            return new GZIPInputStream(new ByteArrayInputStream(data, 0, length));
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) throws IOException {
+            return new GZIPOutputStream(out);
+        }
+    },
+    DEFLATE(2) {
+        @Override
+        InputStream decompress(byte[] data, int length) {
+            return new InflaterInputStream(new ByteArrayInputStream(data, 0, length));
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) {
+            return new DeflaterOutputStream(out);
+        }
+    },
+    NONE(3) {
+        @Override
+        InputStream decompress(byte[] data, int length) {
+            return new ByteArrayInputStream(data, 0, length);
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) {
+            return out;
+        }
+    },
+    /** LZ4 block prefixed with the uncompressed length. Id chosen outside of the range used by vanilla. */
+    LZ4(126) {
+        @Override
+        InputStream decompress(byte[] data, int length) throws IOException {
+            if (length < 4) {
+                throw new IOException("Truncated LZ4 chunk");
+            }
+            int size = (data[0] & 0xFF) << 24 | (data[1] & 0xFF) << 16 | (data[2] & 0xFF) << 8 | (data[3] & 0xFF);
+            byte[] out = new byte[size];
+            Lz4.decompress(data, 4, length - 4, out);
+            return new ByteArrayInputStream(out);
+        }
+
+        @Override
+        OutputStream compress(OutputStream out) {
+            return new ByteArrayOutputStream(8192) {
+                @Override
+                public void close() throws IOException {
+                    byte[] compressed = new byte[Lz4.maxCompressedLength(count)];
+                    int length = Lz4.compress(buf, count, compressed);
+                    DataOutputStream header = new DataOutputStream(out);
+                    header.writeInt(count);
+                    header.write(compressed, 0, length);
+                    header.close();
+                }
+            };
+        }
+    };
+
+    private final int id;
+
+    ChunkCompression(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    abstract InputStream decompress(byte[] data, int length) throws IOException;
+
+    /** Wraps the given stream, the compressed data is complete once the returned stream is closed. */
+    abstract OutputStream compress(OutputStream out) throws IOException;
+
+    public DataInputStream openInput(byte[] data, int length) throws IOException {
+        return new DataInputStream(decompress(data, length));
+    }
+
+    public DataOutputStream openOutput(OutputStream out) throws IOException {
+        return new DataOutputStream(compress(out));
+    }
+
+    @Nullable
+    public static ChunkCompression byId(int id) {
+        for (ChunkCompression compression : values()) {
+            if (compression.id == id) {
+                return compression;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,145 @@
+package com.github.dred974.workshop.workshop.region;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Minimal implementation of the LZ4 block format (greedy matching with a single hash table, as in LZ4's fast mode).
+ * Much cheaper than Deflate on the save thread at the cost of a lower compression ratio.
+ */
+final class Lz4 {
+
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int HASH_LOG = 12;
+    private static final int MAX_DISTANCE = 65535;
+
+    private static final ThreadLocal<int[]> HASH_TABLE = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    private Lz4() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    /** Compresses src[0, length) into dst, returning the number of bytes written. */
+    static int compress(byte[] src, int length, byte[] dst) {
+        int[] table = HASH_TABLE.get();
+        // Positions are stored plus one so that zero means empty
+        Arrays.fill(table, 0);
+        int anchor = 0;
+        int ip = 0;
+        int op = 0;
+        int limit = length - MF_LIMIT;
+        int matchLimit = length - LAST_LITERALS;
+
+        while (ip < limit) {
+            int sequence = readInt(src, ip);
+            int hash = (sequence * -1640531535) >>> (32 - HASH_LOG);
+            int ref = table[hash] - 1;
+            table[hash] = ip + 1;
+            if (ref < 0 || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                ip++;
+                continue;
+            }
+            int matchLength = MIN_MATCH;
+            while (ip + matchLength < matchLimit && src[ref + matchLength] == src[ip + matchLength]) {
+                matchLength++;
+            }
+            op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+            ip += matchLength;
+            anchor = ip;
+        }
+        return writeLastLiterals(src, anchor, length - anchor, dst, op);
+    }
+
+    /** Decompresses src[offset, offset + length) into dst, which must be exactly the uncompressed size. */
+    static void decompress(byte[] src, int offset, int length, byte[] dst) throws IOException {
+        int ip = offset;
+        int end = offset + length;
+        int op = 0;
+        try {
+            while (ip < end) {
+                int token = src[ip++] & 0xFF;
+                int literals = token >>> 4;
+                if (literals == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        literals += b;
+                    } while (b == 255);
+                }
+                System.arraycopy(src, ip, dst, op, literals);
+                ip += literals;
+                op += literals;
+                if (ip >= end) {
+                    break;
+                }
+                int distance = (src[ip] & 0xFF) | (src[ip + 1] & 0xFF) << 8;
+                ip += 2;
+                int matchLength = token & 15;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = src[ip++] & 0xFF;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = op - distance;
+                if (distance == 0 || ref < 0) {
+                    throw new IOException("Malformed LZ4 block: invalid match distance " + distance);
+                }
+                // Matches may overlap their own output, so copy byte by byte
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new IOException("Malformed LZ4 block", e);
+        }
+        if (op != dst.length) {
+            throw new IOException("Malformed LZ4 block: expected " + dst.length + " bytes, got " + op);
+        }
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, byte[] dst, int op, int distance, int matchLength) {
+        int tokenPos = op++;
+        int extraMatch = matchLength - MIN_MATCH;
+        int token = (Math.min(literals, 15) << 4) | Math.min(extraMatch, 15);
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) distance;
+        dst[op++] = (byte) (distance >>> 8);
+        op = writeLength(dst, op, extraMatch);
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLastLiterals(byte[] src, int literalStart, int literals, byte[] dst, int op) {
+        dst[op++] = (byte) (Math.min(literals, 15) << 4);
+        op = writeLength(dst, op, literals);
+        System.arraycopy(src, literalStart, dst, op, literals);
+        return op + literals;
+    }
+
+    /** Writes the extension bytes of a length whose token nibble is saturated. */
+    private static int writeLength(byte[] dst, int op, int length) {
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                dst[op++] = (byte) 255;
+                remaining -= 255;
+            }
+            dst[op++] = (byte) remaining;
+        }
+        return op;
+    }
+
+    private static int readInt(byte[] src, int i) {
+        return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | (src[i + 3] & 0xFF) << 24;
+    }
+}
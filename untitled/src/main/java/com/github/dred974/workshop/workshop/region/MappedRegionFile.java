@@ -0,0 +1,283 @@
+package com.github.dred974.workshop.workshop.region;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.BitSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Anvil region file (.mca) backed by a {@link FileChannel}, readable and writable by several threads at once.
+ * <p>
+ * The 8 KiB header (chunk offsets and timestamps) is memory mapped, chunk payloads are accessed with positional
+ * reads and writes. Each chunk slot is guarded by one of {@link #STRIPES} read/write locks, so readers of different
+ * chunks never wait on each other and a writer only blocks readers of the chunks sharing its stripe. Sector
+ * allocation is the only step done under a file wide lock, and it does no I/O.
+ */
+public class MappedRegionFile implements Closeable {
+
+    private static final int SECTOR_BYTES = 4096;
+    private static final int HEADER_BYTES = SECTOR_BYTES * 2;
+    private static final int CHUNK_HEADER_BYTES = 5;
+    private static final int MAX_SECTORS_PER_CHUNK = 255;
+    private static final int STRIPES = 64;
+
+    private final File file;
+    private final RandomAccessFile access;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private final ReadWriteLock[] stripes = new ReadWriteLock[STRIPES];
+    /** Guarded by itself. */
+    private final BitSet usedSectors = new BitSet();
+    private int sectorCount;
+
+    public MappedRegionFile(File file) throws IOException {
+        this.file = file;
+        this.access = new RandomAccessFile(file, "rw");
+        this.channel = access.getChannel();
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new ReentrantReadWriteLock();
+        }
+
+        long size = channel.size();
+        if (size < HEADER_BYTES) {
+            channel.write(ByteBuffer.allocate((int) (HEADER_BYTES - size)), size);
+            size = HEADER_BYTES;
+        }
+        if ((size & (SECTOR_BYTES - 1)) != 0) {
+            // Pad a truncated last sector, like vanilla does
+            channel.write(ByteBuffer.allocate((int) (SECTOR_BYTES - (size & (SECTOR_BYTES - 1)))), size);
+            size = channel.size();
+        }
+        this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        this.sectorCount = (int) (size / SECTOR_BYTES);
+
+        usedSectors.set(0, 2);
+        for (int i = 0; i < 1024; i++) {
+            int offset = header.getInt(i * 4);
+            int sector = offset >>> 8;
+            int count = offset & 0xFF;
+            if (offset != 0 && sector + count <= sectorCount) {
+                usedSectors.set(sector, sector + count);
+            }
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public boolean isChunkSaved(int x, int z) {
+        int index = index(x, z);
+        ReadWriteLock lock = stripe(index);
+        lock.readLock().lock();
+        try {
+            return header.getInt(index * 4) != 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** Returns a decompressing stream over the stored chunk, or null if the chunk has not been saved. */
+    @Nullable
+    public DataInputStream getChunkDataInputStream(int x, int z) throws IOException {
+        int index = index(x, z);
+        Payload payload;
+        ReadWriteLock lock = stripe(index);
+        lock.readLock().lock();
+        try {
+            payload = read(index);
+        } finally {
+            lock.readLock().unlock();
+        }
+        if (payload == null) {
+            return null;
+        }
+        ChunkCompression compression = ChunkCompression.byId(payload.version);
+        if (compression == null) {
+            throw new IOException("Chunk [" + x + ", " + z + "] in " + file.getName() + " uses unknown compression " + payload.version);
+        }
+        // Decompression happens on the caller's thread, outside of the lock
+        return compression.openInput(payload.data, payload.data.length);
+    }
+
+    /** Stores already compressed chunk data, reusing the chunk's sectors when the size did not change. */
+    public void write(int x, int z, byte[] data, int length, ChunkCompression compression) throws IOException {
+        int index = index(x, z);
+        ReadWriteLock lock = stripe(index);
+        lock.writeLock().lock();
+        try {
+            write(index, data, length, compression.getId());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites a stored chunk with another compression, atomically with respect to concurrent saves of that chunk.
+     * Returns the stored size before and after as {before, after}, or null if the chunk is missing or already uses
+     * the requested compression.
+     */
+    @Nullable
+    public int[] recompress(int x, int z, ChunkCompression target) throws IOException {
+        int index = index(x, z);
+        ReadWriteLock lock = stripe(index);
+        lock.writeLock().lock();
+        try {
+            Payload payload = read(index);
+            ChunkCompression compression = payload == null ? null : ChunkCompression.byId(payload.version);
+            if (compression == null || compression == target) {
+                return null;
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.data.length * 2);
+            try (DataInputStream in = compression.openInput(payload.data, payload.data.length);
+                 OutputStream out = target.compress(bytes)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, read);
+                }
+            }
+            write(index, bytes.toByteArray(), bytes.size(), target.getId());
+            return new int[]{payload.data.length, bytes.size()};
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** Must hold the stripe lock of the index. */
+    @Nullable
+    private Payload read(int index) throws IOException {
+        int offset = header.getInt(index * 4);
+        if (offset == 0) {
+            return null;
+        }
+        int sector = offset >>> 8;
+        int count = offset & 0xFF;
+        if (sector + count > sectorCount) {
+            return null;
+        }
+        ByteBuffer chunkHeader = ByteBuffer.allocate(CHUNK_HEADER_BYTES);
+        readFully(chunkHeader, (long) sector * SECTOR_BYTES);
+        int length = chunkHeader.getInt(0);
+        if (length <= 0 || length > count * SECTOR_BYTES) {
+            return null;
+        }
+        byte[] data = new byte[length - 1];
+        readFully(ByteBuffer.wrap(data), (long) sector * SECTOR_BYTES + CHUNK_HEADER_BYTES);
+        return new Payload(chunkHeader.get(4), data);
+    }
+
+    /** Must hold the write lock of the index's stripe. */
+    private void write(int index, byte[] data, int length, int version) throws IOException {
+        int sectors = (length + CHUNK_HEADER_BYTES + SECTOR_BYTES - 1) / SECTOR_BYTES;
+        if (sectors > MAX_SECTORS_PER_CHUNK) {
+            throw new IOException("Chunk " + index + " is too large to be saved in " + file.getName());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(sectors * SECTOR_BYTES);
+        buffer.putInt(length + 1).put((byte) version).put(data, 0, length);
+        buffer.clear();
+
+        int offset = header.getInt(index * 4);
+        int sector = offset >>> 8;
+        if (offset == 0 || (offset & 0xFF) != sectors) {
+            sector = allocate(offset, sectors);
+        }
+        writeFully(buffer, (long) sector * SECTOR_BYTES);
+        header.putInt(index * 4, sector << 8 | sectors);
+        header.putInt(SECTOR_BYTES + index * 4, (int) (System.currentTimeMillis() / 1000L));
+    }
+
+    private int allocate(int previousOffset, int sectors) {
+        synchronized (usedSectors) {
+            if (previousOffset != 0) {
+                int previous = previousOffset >>> 8;
+                usedSectors.clear(previous, previous + (previousOffset & 0xFF));
+            }
+            int start = usedSectors.nextClearBit(2);
+            while (start < sectorCount) {
+                int end = usedSectors.nextSetBit(start);
+                if (end < 0 || end > sectorCount) {
+                    end = sectorCount;
+                }
+                if (end - start >= sectors) {
+                    break;
+                }
+                start = usedSectors.nextClearBit(end);
+            }
+            usedSectors.set(start, start + sectors);
+            sectorCount = Math.max(sectorCount, start + sectors);
+            return start;
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + file.getName());
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+    }
+
+    private ReadWriteLock stripe(int index) {
+        return stripes[index & (STRIPES - 1)];
+    }
+
+    private static int index(int x, int z) {
+        return (x & 31) + (z & 31) * 32;
+    }
+
+    /** Must only be called once no other thread uses the region, the header is unmapped right away. */
+    @Override
+    public void close() throws IOException {
+        header.force();
+        unmap(header);
+        access.close();
+    }
+
+    /**
+     * Releases the mapping now instead of when the buffer is collected, since an open mapping keeps the file locked
+     * on Windows. Left to the garbage collector if the JVM does not expose the buffer's cleaner.
+     */
+    private static void unmap(MappedByteBuffer buffer) {
+        try {
+            Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+            cleanerMethod.setAccessible(true);
+            Object cleaner = cleanerMethod.invoke(buffer);
+            if (cleaner != null) {
+                Method clean = cleaner.getClass().getMethod("clean");
+                clean.setAccessible(true);
+                clean.invoke(cleaner);
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            // Unmapped once collected
+        }
+    }
+
+    private static final class Payload {
+
+        final int version;
+        final byte[] data;
+
+        Payload(int version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.dred974.workshop.workshop.region;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import net.minecraft.command.ICommandSender;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.util.text.TextComponentString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Rewrites every region file of the current save with another {@link ChunkCompression}.
+ * Runs on its own thread while the server keeps running: each chunk is converted under its region lock, so chunks
+ * saved by the game in the meantime are never overwritten with older data.
+ */
+public final class RegionConverter {
+
+    private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+    private static final AtomicBoolean running = new AtomicBoolean();
+
+    private RegionConverter() {
+    }
+
+    /** Returns false if a conversion is already running. */
+    public static boolean start(MinecraftServer server, ICommandSender sender, ChunkCompression target) {
+        if (!running.compareAndSet(false, true)) {
+            return false;
+        }
+        File saveDir = server.getEntityWorld().getSaveHandler().getWorldDirectory();
+        Thread thread = new Thread(() -> {
+            try {
+                convert(server, sender, saveDir, target);
+            } catch (Exception e) {
+                Workshop.LOGGER.error("Region conversion failed", e);
+                reply(server, sender, "Region conversion failed: " + e);
+            } finally {
+                running.set(false);
+            }
+        }, "Workshop Region Converter");
+        thread.setDaemon(true);
+        thread.start();
+        return true;
+    }
+
+    private static void convert(MinecraftServer server, ICommandSender sender, File saveDir, ChunkCompression target) throws IOException {
+        List<File> regions;
+        try (Stream<Path> paths = Files.walk(saveDir.toPath(), 3)) {
+            regions = paths.filter(path -> path.getFileName().toString().endsWith(".mca") && path.getParent().getFileName().toString().equals("region"))
+                    .map(Path::toFile)
+                    .collect(Collectors.toList());
+        }
+        reply(server, sender, "Converting " + regions.size() + " region files to " + target);
+
+        long start = System.currentTimeMillis();
+        long lastReport = start;
+        long before = 0;
+        long after = 0;
+        for (int i = 0; i < regions.size(); i++) {
+            long[] sizes = RegionStore.recompress(regions.get(i), target);
+            before += sizes[0];
+            after += sizes[1];
+            long now = System.currentTimeMillis();
+            if (now - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+                lastReport = now;
+                reply(server, sender, String.format("Converted %d/%d region files", i + 1, regions.size()));
+            }
+        }
+
+        double seconds = Math.max(1, System.currentTimeMillis() - start) / 1000.0;
+        reply(server, sender, String.format("Converted %d region files to %s in %.1fs: %.1f MB -> %.1f MB (%.1f%%), %.1f MB/s",
+                regions.size(), target, seconds, before / 1048576.0, after / 1048576.0, before == 0 ? 100 : after * 100.0 / before,
+                before / 1048576.0 / seconds));
+    }
+
+    private static void reply(MinecraftServer server, ICommandSender sender, String message) {
+        Workshop.LOGGER.info(message);
+        server.addScheduledTask(() -> sender.sendMessage(new TextComponentString(message)));
+    }
+}
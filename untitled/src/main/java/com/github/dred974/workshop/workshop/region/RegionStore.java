@@ -0,0 +1,346 @@
+package com.github.dred974.workshop.workshop.region;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import javax.annotation.Nullable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Workshop counterpart of vanilla's RegionFileCache, handing out {@link MappedRegionFile}s.
+ * <p>
+ * Open regions are kept in {@link #SEGMENTS} independently locked maps, so threads working on different regions
+ * rarely meet, and files are opened outside of these locks. The open handle budget is shared by all segments: instead
+ * of dropping every handle when full like vanilla, the least recently used idle regions of any segment are closed
+ * once it is exceeded, and regions left unused for a while are closed by a periodic sweep. Regions currently in use
+ * are never evicted, so a file is never open twice.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class RegionStore {
+
+    private static final int SEGMENTS = 16;
+    private static final int SWEEP_INTERVAL_TICKS = 200;
+
+    private static final Segment[] segments = new Segment[SEGMENTS];
+    private static final LongAdder hits = new LongAdder();
+    private static final LongAdder misses = new LongAdder();
+    private static final LongAdder evictions = new LongAdder();
+    private static final LongAdder idleCloses = new LongAdder();
+    /** Handles in all segments, including the ones still opening. */
+    private static final AtomicInteger open = new AtomicInteger();
+    private static int ticks;
+
+    static {
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private RegionStore() {
+    }
+
+    @Nullable
+    public static DataInputStream getChunkInputStream(File worldDir, int chunkX, int chunkZ) throws IOException {
+        Handle handle = acquire(regionFile(worldDir, chunkX, chunkZ), false);
+        if (handle == null) {
+            return null;
+        }
+        try {
+            return handle.region.getChunkDataInputStream(chunkX, chunkZ);
+        } finally {
+            handle.release();
+        }
+    }
+
+    public static boolean chunkExists(File worldDir, int chunkX, int chunkZ) {
+        try {
+            Handle handle = acquire(regionFile(worldDir, chunkX, chunkZ), false);
+            if (handle == null) {
+                return false;
+            }
+            try {
+                return handle.region.isChunkSaved(chunkX, chunkZ);
+            } finally {
+                handle.release();
+            }
+        } catch (IOException e) {
+            Workshop.LOGGER.warn("Failed to open region for chunk [{}, {}] in {}", chunkX, chunkZ, worldDir, e);
+            return false;
+        }
+    }
+
+    public static void write(File worldDir, int chunkX, int chunkZ, byte[] data, int length, ChunkCompression compression) throws IOException {
+        Handle handle = acquire(regionFile(worldDir, chunkX, chunkZ), true);
+        try {
+            handle.region.write(chunkX, chunkZ, data, length, compression);
+        } finally {
+            handle.release();
+        }
+    }
+
+    /**
+     * Rewrites every chunk of a region file with the given compression, going through the cache so that concurrent
+     * saves of the same chunks are never lost. Returns the total stored size before and after as {before, after}.
+     */
+    public static long[] recompress(File file, ChunkCompression target) throws IOException {
+        long[] sizes = new long[2];
+        Handle handle = acquire(file, false);
+        if (handle == null) {
+            return sizes;
+        }
+        try {
+            for (int z = 0; z < 32; z++) {
+                for (int x = 0; x < 32; x++) {
+                    int[] converted = handle.region.recompress(x, z, target);
+                    if (converted != null) {
+                        sizes[0] += converted[0];
+                        sizes[1] += converted[1];
+                    }
+                }
+            }
+        } finally {
+            handle.release();
+        }
+        return sizes;
+    }
+
+    private static File regionFile(File worldDir, int chunkX, int chunkZ) {
+        return new File(new File(worldDir, "region"), "r." + (chunkX >> 5) + "." + (chunkZ >> 5) + ".mca");
+    }
+
+    /**
+     * Returns an acquired handle, or null if the region does not exist and create is false. The file is opened outside
+     * of the segment lock: a placeholder handle is published first, and threads asking for the same region meanwhile
+     * wait for it to open instead of opening the file a second time.
+     */
+    @Nullable
+    private static Handle acquire(File file, boolean create) throws IOException {
+        Segment segment = segments[(file.hashCode() & 0x7FFFFFFF) % SEGMENTS];
+        while (true) {
+            Handle handle;
+            boolean opening = false;
+            synchronized (segment) {
+                handle = segment.handles.get(file);
+                if (handle != null) {
+                    hits.increment();
+                } else {
+                    misses.increment();
+                    if (!create && !file.exists()) {
+                        return null;
+                    }
+                    handle = new Handle(segment, file);
+                    segment.handles.put(file, handle);
+                    open.incrementAndGet();
+                    opening = true;
+                }
+                handle.refs++;
+                handle.lastUsed = System.nanoTime();
+            }
+            if (opening) {
+                try {
+                    file.getParentFile().mkdirs();
+                    handle.opened(new MappedRegionFile(file));
+                } catch (IOException | RuntimeException e) {
+                    synchronized (segment) {
+                        segment.handles.remove(file);
+                    }
+                    open.decrementAndGet();
+                    handle.opened(null);
+                    throw e;
+                }
+                evictOverBudget();
+                return handle;
+            }
+            if (handle.awaitOpened()) {
+                return handle;
+            }
+            // The region failed to open and was taken out again, try opening it ourselves
+        }
+    }
+
+    /**
+     * Closes the least recently used idle regions, across all segments, until the open handle budget is met again.
+     * Regions in use are never closed, so the budget is exceeded while more regions than that are in use.
+     */
+    private static void evictOverBudget() {
+        while (open.get() > WorkshopConfig.regions.openHandleBudget) {
+            Segment oldest = null;
+            long oldestUsed = 0;
+            for (Segment segment : segments) {
+                synchronized (segment) {
+                    Handle eldest = segment.eldestIdle();
+                    if (eldest != null && (oldest == null || eldest.lastUsed - oldestUsed < 0)) {
+                        oldest = segment;
+                        oldestUsed = eldest.lastUsed;
+                    }
+                }
+            }
+            if (oldest == null) {
+                return;
+            }
+            Handle evicted;
+            synchronized (oldest) {
+                // Used again since the scan, look again
+                evicted = oldest.eldestIdle();
+                if (evicted == null || evicted.lastUsed != oldestUsed) {
+                    continue;
+                }
+                oldest.handles.remove(evicted.file);
+            }
+            open.decrementAndGet();
+            evictions.increment();
+            evicted.close();
+        }
+    }
+
+    /** Closes regions unused for longer than the configured idle time. */
+    public static void closeIdle() {
+        int idleSeconds = WorkshopConfig.regions.idleCloseSeconds;
+        if (idleSeconds <= 0) {
+            return;
+        }
+        long cutoff = System.nanoTime() - TimeUnit.SECONDS.toNanos(idleSeconds);
+        for (Segment segment : segments) {
+            List<Handle> idle = new ArrayList<>(0);
+            synchronized (segment) {
+                // Segments are small, and lastUsed moves on release without reordering them, so look at every handle
+                Iterator<Handle> iterator = segment.handles.values().iterator();
+                while (iterator.hasNext()) {
+                    Handle handle = iterator.next();
+                    if (handle.refs > 0 || handle.lastUsed - cutoff >= 0) {
+                        continue;
+                    }
+                    iterator.remove();
+                    open.decrementAndGet();
+                    idle.add(handle);
+                    idleCloses.increment();
+                }
+            }
+            for (Handle handle : idle) {
+                handle.close();
+            }
+        }
+    }
+
+    /** Closes every open region. Must only be called once nothing reads or writes chunks anymore. */
+    public static void closeAll() {
+        for (Segment segment : segments) {
+            List<Handle> closing;
+            synchronized (segment) {
+                closing = new ArrayList<>(segment.handles.values());
+                open.addAndGet(-closing.size());
+                segment.handles.clear();
+            }
+            for (Handle handle : closing) {
+                handle.close();
+            }
+        }
+    }
+
+    public static int openHandles() {
+        return open.get();
+    }
+
+    public static String describe() {
+        long hitCount = hits.sum();
+        long lookups = hitCount + misses.sum();
+        return String.format("%d/%d open, %d lookups, %.1f%% hits, %d evicted, %d closed idle",
+                openHandles(), WorkshopConfig.regions.openHandleBudget, lookups, lookups == 0 ? 0 : hitCount * 100.0 / lookups,
+                evictions.sum(), idleCloses.sum());
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.END && ++ticks % SWEEP_INTERVAL_TICKS == 0) {
+            closeIdle();
+        }
+    }
+
+    private static final class Segment {
+
+        final Map<File, Handle> handles = new HashMap<>();
+
+        /** Returns the least recently used region not in use, or null. Must hold the segment. */
+        @Nullable
+        Handle eldestIdle() {
+            Handle eldest = null;
+            for (Handle handle : handles.values()) {
+                if (handle.refs == 0 && (eldest == null || handle.lastUsed - eldest.lastUsed < 0)) {
+                    eldest = handle;
+                }
+            }
+            return eldest;
+        }
+    }
+
+    private static final class Handle {
+
+        final Segment segment;
+        final File file;
+        private final CountDownLatch opening = new CountDownLatch(1);
+        /** Set once by the thread opening the region, null if it failed to open. */
+        MappedRegionFile region;
+        /** Guarded by the segment. */
+        int refs;
+        long lastUsed;
+
+        Handle(Segment segment, File file) {
+            this.segment = segment;
+            this.file = file;
+        }
+
+        void opened(@Nullable MappedRegionFile region) {
+            this.region = region;
+            opening.countDown();
+        }
+
+        /** Waits for the opening thread, returns false if the region could not be opened. */
+        boolean awaitOpened() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    opening.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return region != null;
+        }
+
+        void release() {
+            synchronized (segment) {
+                refs--;
+                lastUsed = System.nanoTime();
+            }
+        }
+
+        void close() {
+            if (region == null) {
+                return;
+            }
+            try {
+                region.close();
+            } catch (IOException e) {
+                Workshop.LOGGER.warn("Failed to close region file {}", file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package com.github.dred974.workshop.workshop.util;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import net.minecraftforge.fml.common.ObfuscationReflectionHelper;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+/**
+ * Small wrapper around {@link ObfuscationReflectionHelper} used to swap vanilla internals for Workshop implementations.
+ * Every lookup takes the MCP name first and the SRG name second. The SRG name is the one looked up, remapped to the
+ * MCP name in dev, the MCP name only documents the call.
+ * Failures are logged and reported through the return value so a missing field disables a feature instead of
+ * crashing the server.
+ */
+public final class Reflection {
+
+    private Reflection() {
+    }
+
+    /** Returns the accessible field, or null if it does not exist. The last name is the SRG one. */
+    public static Field findField(Class<?> owner, String... names) {
+        try {
+            return ObfuscationReflectionHelper.findField(owner, names[names.length - 1]);
+        } catch (RuntimeException e) {
+            Workshop.LOGGER.warn("Unable to find field {} in {}", String.join("/", names), owner.getName());
+            return null;
+        }
+    }
+
+    /** Returns the accessible method, or null if it does not exist. */
+    public static Method findMethod(Class<?> owner, String name, String srgName, Class<?> returnType, Class<?>... parameterTypes) {
+        try {
+            return ObfuscationReflectionHelper.findMethod(owner, srgName, returnType, parameterTypes);
+        } catch (RuntimeException e) {
+            Workshop.LOGGER.warn("Unable to find method {}/{} in {}", name, srgName, owner.getName());
+            return null;
+        }
+    }
+
+    /** Returns the value of the field, or null if it could not be read. */
+    @SuppressWarnings("unchecked")
+    public static <T> T getField(Class<?> owner, Object instance, String... names) {
+        Field field = findField(owner, names);
+        if (field == null) {
+            return null;
+        }
+        try {
+            return (T) field.get(instance);
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to read field {} in {}", field.getName(), owner.getName(), e);
+            return null;
+        }
+    }
+
+    /** Replaces the value of a (possibly final) instance field. Returns false if the field could not be written. */
+    public static boolean setField(Class<?> owner, Object instance, Object value, String... names) {
+        Field field = findField(owner, names);
+        if (field == null) {
+            return false;
+        }
+        try {
+            field.set(instance, value);
+            return true;
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to write field {} in {}", field.getName(), owner.getName(), e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.github.dred974.workshop.workshop.world;
+
+import net.minecraft.block.Block;
+import net.minecraft.block.BlockAir;
+import net.minecraft.block.state.BlockStateContainer;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.ClassInheritanceMultiMap;
+import net.minecraft.util.EntitySelectors;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldType;
+import net.minecraft.world.border.WorldBorder;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraftforge.event.ForgeEventFactory;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reusable counterpart of World.getCollisionBoxes(Entity, AxisAlignedBB), for entities moving themselves.
+ * <p>
+ * The result is the same boxes in the same order as vanilla, including the GetCollisionBoxesEvent, but written into
+ * a list owned by the query and valid until its next use. Sections are looked up through the collision index of their
+ * {@link TrackedBlockStateContainer}, which the first query gives them whether or not Workshop's random ticking is
+ * enabled: air and sections without colliding blocks are skipped on bit tests, and plain cubes hand out a box cached by
+ * the container instead of a new one. Only blocks with their own collision code are asked for their boxes. Entities are
+ * read straight from the chunk entity lists instead of a gathered list.
+ * <p>
+ * Vanilla's Entity.move cannot be pointed at the query without patching Entity, so it is a hook for mods implementing
+ * their own move. Such an entity replaces the world call at the start of its collision step with
+ * <pre>
+ * List&lt;AxisAlignedBB&gt; boxes = CollisionQuery.get().getCollisionBoxes(world, this, getEntityBoundingBox().expand(x, y, z));
+ * </pre>
+ * and must be done with the list before moving on. Each thread gets its own query through {@link #get()}, and a world
+ * must only be queried from the thread ticking it, since the first query of a section swaps its container.
+ */
+public final class CollisionQuery {
+
+    static final int EMPTY = 0;
+    static final int CUBE = 1;
+    static final int COMPLEX = 2;
+
+    private static final ThreadLocal<CollisionQuery> QUERIES = ThreadLocal.withInitial(CollisionQuery::new);
+    private static final IBlockState BORDER = Blocks.STONE.getDefaultState();
+    private static final ClassValue<Boolean> PLAIN_CUBES = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return !overrides(type, "addCollisionBoxToList", "func_185477_a")
+                    && !overrides(type, "getCollisionBoundingBox", "func_180646_a")
+                    && !overrides(type, "getBoundingBox", "func_185496_a");
+        }
+    };
+
+    private static final LongAdder queries = new LongAdder();
+    private static final LongAdder indexedBlocks = new LongAdder();
+    private static final LongAdder delegatedBlocks = new LongAdder();
+
+    private final List<AxisAlignedBB> boxes = new ArrayList<>();
+    private final BlockPos.MutableBlockPos pos = new BlockPos.MutableBlockPos();
+
+    private CollisionQuery() {
+    }
+
+    /** Returns the query of the calling thread. */
+    public static CollisionQuery get() {
+        return QUERIES.get();
+    }
+
+    /**
+     * Returns the block and entity boxes intersecting the given box, like World.getCollisionBoxes. The list belongs to
+     * the query and is cleared by its next call.
+     */
+    public List<AxisAlignedBB> getCollisionBoxes(World world, @Nullable Entity entity, AxisAlignedBB box) {
+        boxes.clear();
+        queries.increment();
+        if (world.getWorldType() == WorldType.DEBUG_ALL_BLOCK_STATES) {
+            // Blocks of the debug world do not come from its sections
+            boxes.addAll(world.getCollisionBoxes(entity, box));
+            return boxes;
+        }
+        collectBlocks(world, entity, box);
+        if (entity != null) {
+            collectEntities(world, entity, box);
+        }
+        ForgeEventFactory.gatherCollisionBoxes(world, entity, box, boxes);
+        return boxes;
+    }
+
+    /** Same walk as vanilla, which leaves out the corner columns of the grown box and the top of its sides. */
+    private void collectBlocks(World world, @Nullable Entity entity, AxisAlignedBB box) {
+        int minX = MathHelper.floor(box.minX) - 1;
+        int maxX = MathHelper.ceil(box.maxX) + 1;
+        int minY = MathHelper.floor(box.minY) - 1;
+        int maxY = MathHelper.ceil(box.maxY) + 1;
+        int minZ = MathHelper.floor(box.minZ) - 1;
+        int maxZ = MathHelper.ceil(box.maxZ) + 1;
+        WorldBorder border = world.getWorldBorder();
+        boolean outside = entity != null && entity.isOutsideBorder();
+        boolean inside = entity != null && world.isInsideWorldBorder(entity);
+        for (int x = minX; x < maxX; x++) {
+            for (int z = minZ; z < maxZ; z++) {
+                boolean edgeX = x == minX || x == maxX - 1;
+                boolean edgeZ = z == minZ || z == maxZ - 1;
+                if (edgeX && edgeZ || x < -30000000 || x >= 30000000 || z < -30000000 || z >= 30000000) {
+                    continue;
+                }
+                Chunk chunk = world.getChunkProvider().getLoadedChunk(x >> 4, z >> 4);
+                if (chunk == null || chunk.isEmpty()) {
+                    continue;
+                }
+                int top = edgeX || edgeZ ? maxY - 1 : maxY;
+                if (entity != null && outside == inside) {
+                    entity.setOutsideBorder(!inside);
+                }
+                if (inside && !border.contains(pos.setPos(x, 64, z))) {
+                    for (int y = minY; y < top; y++) {
+                        BORDER.addCollisionBoxToList(world, pos.setPos(x, y, z), box, boxes, entity, false);
+                    }
+                    continue;
+                }
+                collectColumn(world, chunk, entity, box, x, z, Math.max(minY, 0), Math.min(top, 256));
+            }
+        }
+    }
+
+    private void collectColumn(World world, Chunk chunk, @Nullable Entity entity, AxisAlignedBB box, int x, int z, int minY, int maxY) {
+        ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+        int y = minY;
+        while (y < maxY) {
+            ExtendedBlockStorage section = sections[y >> 4];
+            int sectionEnd = Math.min(maxY, (y & ~15) + 16);
+            if (section == Chunk.NULL_BLOCK_STORAGE) {
+                y = sectionEnd;
+                continue;
+            }
+            TrackedBlockStateContainer indexed = TrackedBlockStateContainer.of(section);
+            if (indexed != null) {
+                if (!indexed.hasCollisions()) {
+                    y = sectionEnd;
+                    continue;
+                }
+                for (; y < sectionEnd; y++) {
+                    int index = x & 15 | (z & 15) << 4 | (y & 15) << 8;
+                    int shape = indexed.getShape(index);
+                    if (shape == CUBE) {
+                        indexedBlocks.increment();
+                        AxisAlignedBB cube = indexed.getCubeBox(index, chunk.x << 4, section.getYLocation(), chunk.z << 4);
+                        if (box.intersects(cube)) {
+                            boxes.add(cube);
+                        }
+                    } else if (shape == COMPLEX) {
+                        delegatedBlocks.increment();
+                        section.get(x & 15, y & 15, z & 15).addCollisionBoxToList(world, pos.setPos(x, y, z), box, boxes, entity, false);
+                    }
+                }
+            } else {
+                for (; y < sectionEnd; y++) {
+                    delegatedBlocks.increment();
+                    section.get(x & 15, y & 15, z & 15).addCollisionBoxToList(world, pos.setPos(x, y, z), box, boxes, entity, false);
+                }
+            }
+        }
+    }
+
+    /** Same entities as World.getEntitiesWithinAABBExcludingEntity on the box grown by a quarter block. */
+    private void collectEntities(World world, Entity entity, AxisAlignedBB box) {
+        AxisAlignedBB area = box.grow(0.25D);
+        int minChunkX = MathHelper.floor((area.minX - World.MAX_ENTITY_RADIUS) / 16.0D);
+        int maxChunkX = MathHelper.floor((area.maxX + World.MAX_ENTITY_RADIUS) / 16.0D);
+        int minChunkZ = MathHelper.floor((area.minZ - World.MAX_ENTITY_RADIUS) / 16.0D);
+        int maxChunkZ = MathHelper.floor((area.maxZ + World.MAX_ENTITY_RADIUS) / 16.0D);
+        int minSection = MathHelper.clamp(MathHelper.floor((area.minY - World.MAX_ENTITY_RADIUS) / 16.0D), 0, 15);
+        int maxSection = MathHelper.clamp(MathHelper.floor((area.maxY + World.MAX_ENTITY_RADIUS) / 16.0D), 0, 15);
+        for (int chunkX = minChunkX; chunkX <= maxChunkX; chunkX++) {
+            for (int chunkZ = minChunkZ; chunkZ <= maxChunkZ; chunkZ++) {
+                Chunk chunk = world.getChunkProvider().getLoadedChunk(chunkX, chunkZ);
+                if (chunk == null) {
+                    continue;
+                }
+                ClassInheritanceMultiMap<Entity>[] lists = chunk.getEntityLists();
+                for (int section = minSection; section <= maxSection && section < lists.length; section++) {
+                    if (lists[section].isEmpty()) {
+                        continue;
+                    }
+                    for (Entity other : lists[section]) {
+                        if (other != entity && other.getEntityBoundingBox().intersects(area)) {
+                            collide(entity, other, box);
+                            Entity[] parts = other.getParts();
+                            if (parts != null) {
+                                for (Entity part : parts) {
+                                    if (part != entity && part.getEntityBoundingBox().intersects(area)) {
+                                        collide(entity, part, box);
+                                    }
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void collide(Entity entity, Entity other, AxisAlignedBB box) {
+        if (!EntitySelectors.NOT_SPECTATING.apply(other) || entity.isRidingSameEntity(other)) {
+            return;
+        }
+        AxisAlignedBB collision = other.getCollisionBoundingBox();
+        if (collision != null && collision.intersects(box)) {
+            boxes.add(collision);
+        }
+        collision = entity.getCollisionBox(other);
+        if (collision != null && collision.intersects(box)) {
+            boxes.add(collision);
+        }
+    }
+
+    /** Returns how the collision of a block state can be indexed. */
+    static int shapeOf(IBlockState state) {
+        Block block = state.getBlock();
+        if (block == Blocks.AIR) {
+            return EMPTY;
+        }
+        if (!(state instanceof BlockStateContainer.StateImplementation) || block instanceof BlockAir || !PLAIN_CUBES.get(block.getClass())) {
+            return COMPLEX;
+        }
+        return CUBE;
+    }
+
+    /** Returns whether a subclass of Block declares the given method, under its MCP or SRG name. */
+    private static boolean overrides(Class<?> type, String name, String srgName) {
+        for (Class<?> c = type; c != Block.class && c != null; c = c.getSuperclass()) {
+            for (Method method : c.getDeclaredMethods()) {
+                if ((method.getName().equals(name) || method.getName().equals(srgName)) && !method.isBridge()
+                        && method.getParameterCount() > 0 && method.getParameterTypes()[0] == IBlockState.class) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    public static String describe() {
+        long indexed = indexedBlocks.sum();
+        long blocks = indexed + delegatedBlocks.sum();
+        return String.format("%d queries, %d block lookups, %.1f%% from the section index",
+                queries.sum(), blocks, blocks == 0 ? 0 : indexed * 100.0 / blocks);
+    }
+}
@@ -0,0 +1,124 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.block.Block;
+import net.minecraft.block.material.Material;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.init.Blocks;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.Explosion;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.world.ExplosionEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Block list of an explosion that destroys each block as Explosion.doExplosionB reaches it, through
+ * {@link LightQueue#setBlockState}, so a large blast queues its light checks instead of running one per block.
+ * <p>
+ * Drops and Block.onExplosionDestroy are done like vanilla, and doExplosionB then finds air and moves on. Blocks that
+ * override Block.onBlockExploded are left to it. Only the first walk over the list destroys blocks, later ones (fire
+ * placement, the explosion packet) see plain positions.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+final class ExplodedBlocks extends ArrayList<BlockPos> {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Field BLOCKS = Reflection.findField(Explosion.class, "affectedBlockPositions", "field_77281_g");
+    private static final Field DAMAGES_TERRAIN = Reflection.findField(Explosion.class, "damagesTerrain", "field_82755_b");
+    private static final Field SIZE = Reflection.findField(Explosion.class, "size", "field_77280_f");
+    private static final ClassValue<Boolean> PLAIN_EXPLODED = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            for (Class<?> c = type; c != Block.class && c != null; c = c.getSuperclass()) {
+                for (Method method : c.getDeclaredMethods()) {
+                    if (method.getName().equals("onBlockExploded")) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+    };
+
+    private final WorldServer world;
+    private final Explosion explosion;
+    private final float size;
+    private boolean destroyed;
+
+    private ExplodedBlocks(WorldServer world, Explosion explosion, float size, Collection<BlockPos> blocks) {
+        super(blocks);
+        this.world = world;
+        this.explosion = explosion;
+        this.size = size;
+    }
+
+    @Override
+    public Iterator<BlockPos> iterator() {
+        Iterator<BlockPos> positions = super.iterator();
+        if (destroyed) {
+            return positions;
+        }
+        destroyed = true;
+        return new Iterator<BlockPos>() {
+            @Override
+            public boolean hasNext() {
+                return positions.hasNext();
+            }
+
+            @Override
+            public BlockPos next() {
+                BlockPos pos = positions.next();
+                destroy(pos);
+                return pos;
+            }
+        };
+    }
+
+    /** Same as doExplosionB for one block, with the block set to air through the light queue. */
+    private void destroy(BlockPos pos) {
+        IBlockState state = world.getBlockState(pos);
+        Block block = state.getBlock();
+        if (state.getMaterial() == Material.AIR) {
+            return;
+        }
+        if (block.canDropFromExplosion(explosion)) {
+            block.dropBlockAsItemWithChance(world, pos, world.getBlockState(pos), 1.0F / size, 0);
+        }
+        if (PLAIN_EXPLODED.get(block.getClass())) {
+            LightQueue.setBlockState(world, pos, Blocks.AIR.getDefaultState(), 3);
+            block.onExplosionDestroy(world, pos, explosion);
+        } else {
+            block.onBlockExploded(world, pos, explosion);
+        }
+    }
+
+    /** Runs after every other listener had its say on the affected blocks. */
+    @SubscribeEvent(priority = EventPriority.LOWEST)
+    public static void onDetonate(ExplosionEvent.Detonate event) {
+        if (!(event.getWorld() instanceof WorldServer) || !WorkshopConfig.lighting.enabled || BLOCKS == null || DAMAGES_TERRAIN == null
+                || SIZE == null || event.getAffectedBlocks().isEmpty()) {
+            return;
+        }
+        Explosion explosion = event.getExplosion();
+        try {
+            if (!DAMAGES_TERRAIN.getBoolean(explosion)) {
+                // doExplosionB would never walk the list to destroy blocks
+                return;
+            }
+            BLOCKS.set(explosion, new ExplodedBlocks((WorldServer) event.getWorld(), explosion, SIZE.getFloat(explosion), event.getAffectedBlocks()));
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to batch the light updates of an explosion", e);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.server.MinecraftServer;
+import net.minecraft.server.management.PlayerChunkMapEntry;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.WorldType;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.FMLCommonHandler;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Batched light updates for bulk block changes. Main thread only.
+ * <p>
+ * {@link #setBlockState} changes a block like World.setBlockState but, instead of running the light flood fill right
+ * away, queues the position. Queued positions are deduplicated per chunk and relit at the end of the server tick
+ * within a time budget, so a thousand changes to the same area cost a handful of light checks spread over a few ticks
+ * instead of a thousand checks in one tick. Chunks are relit before any chunk packet is built for them, whether first
+ * sent, sent to a player starting to watch them or partially resent by the {@link WorkshopPlayerChunkMap}, and before
+ * they are unloaded. Everything queued is relit before autosaves and on shutdown. Blocks destroyed by explosions go
+ * through it, see {@link ExplodedBlocks}.
+ * <p>
+ * Relighting stays on the main thread: it reads and writes neighbouring chunks, which is not safe while the world
+ * ticks. Clients compute light on their own for block changes in chunks they already have, so deferring only affects
+ * the server's view (mob spawning, saved light) for a few ticks.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class LightQueue {
+
+    private static final Map<World, LightQueue> BY_WORLD = new WeakHashMap<>();
+
+    private static final int AUTOSAVE_INTERVAL = 900;
+
+    private static long processed;
+    private static long windowChecks;
+    private static long windowNanos;
+    private static int ticks;
+    private static double checksPerTick;
+    private static double millisPerTick;
+
+    private final WorldServer world;
+    /** Positions to relight grouped by chunk, in the order chunks were first queued. */
+    private final Long2ObjectLinkedOpenHashMap<LongOpenHashSet> pending = new Long2ObjectLinkedOpenHashMap<>();
+    private int size;
+
+    private LightQueue(WorldServer world) {
+        this.world = world;
+    }
+
+    /**
+     * Same as World.setBlockState, except the light update is queued. Falls back to World.setBlockState when block
+     * snapshots are being captured, so block placement events keep working, and when the world does not use the
+     * {@link WorkshopPlayerChunkMap}, which relights chunks before their packets are built.
+     */
+    public static boolean setBlockState(WorldServer world, BlockPos pos, IBlockState state, int flags) {
+        if (world.captureBlockSnapshots || !WorkshopConfig.lighting.enabled || !(world.getPlayerChunkMap() instanceof WorkshopPlayerChunkMap)) {
+            return world.setBlockState(pos, state, flags);
+        }
+        if (world.isOutsideBuildHeight(pos) || world.getWorldInfo().getTerrainType() == WorldType.DEBUG_ALL_BLOCK_STATES) {
+            return false;
+        }
+        Chunk chunk = world.getChunk(pos);
+        pos = pos.toImmutable();
+        IBlockState oldState = chunk.getBlockState(pos);
+        int oldLight = oldState.getLightValue(world, pos);
+        int oldOpacity = oldState.getLightOpacity(world, pos);
+        IBlockState previous = chunk.setBlockState(pos, state);
+        if (previous == null) {
+            return false;
+        }
+        if (state.getLightOpacity(world, pos) != oldOpacity || state.getLightValue(world, pos) != oldLight) {
+            queue(world, pos);
+        }
+        // World listeners only hear about the change if the flags ask for it
+        SectionVersions versions = SectionVersions.get(world);
+        if (versions != null) {
+            versions.markChanged(pos.getX(), pos.getY(), pos.getZ());
+        }
+        world.markAndNotifyBlock(pos, chunk, previous, state, flags);
+        return true;
+    }
+
+    /** Queues a light check at the given position. */
+    public static void queue(WorldServer world, BlockPos pos) {
+        BY_WORLD.computeIfAbsent(world, w -> new LightQueue((WorldServer) w)).add(pos);
+    }
+
+    private void add(BlockPos pos) {
+        long chunk = ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+        LongOpenHashSet positions = pending.get(chunk);
+        if (positions == null) {
+            positions = new LongOpenHashSet();
+            pending.put(chunk, positions);
+        }
+        if (positions.add(pos.toLong())) {
+            size++;
+        }
+    }
+
+    /** Relights queued chunks, oldest first, until the deadline. Returns the number of light checks done. */
+    private int process(long deadline) {
+        int checks = 0;
+        while (!pending.isEmpty() && System.nanoTime() - deadline < 0) {
+            long chunk = pending.firstLongKey();
+            LongOpenHashSet positions = pending.get(chunk);
+            LongIterator iterator = positions.iterator();
+            while (iterator.hasNext() && System.nanoTime() - deadline < 0) {
+                relight(iterator.nextLong());
+                iterator.remove();
+                checks++;
+            }
+            if (positions.isEmpty()) {
+                pending.removeFirst();
+            }
+        }
+        return checks;
+    }
+
+    /** Relights every queued position of a chunk. */
+    private void flush(long chunk) {
+        LongOpenHashSet positions = pending.remove(chunk);
+        if (positions != null) {
+            LongIterator iterator = positions.iterator();
+            while (iterator.hasNext()) {
+                relight(iterator.nextLong());
+            }
+        }
+    }
+
+    /** Relights every queued position of a chunk, called before a packet carrying its light is built. */
+    static void flushChunk(WorldServer world, int x, int z) {
+        LightQueue queue = BY_WORLD.get(world);
+        if (queue != null && !queue.pending.isEmpty()) {
+            queue.flush(ChunkPos.asLong(x, z));
+        }
+    }
+
+    /** Relights every queued chunk within the given radius of a chunk, before a player starts watching them. */
+    static void flushArea(WorldServer world, int centerX, int centerZ, int radius) {
+        LightQueue queue = BY_WORLD.get(world);
+        if (queue == null || queue.pending.isEmpty()) {
+            return;
+        }
+        for (long chunk : queue.pending.keySet().toLongArray()) {
+            if (Math.abs((int) chunk - centerX) <= radius && Math.abs((int) (chunk >> 32) - centerZ) <= radius) {
+                queue.flush(chunk);
+            }
+        }
+    }
+
+    private void flushWorld() {
+        while (!pending.isEmpty()) {
+            flush(pending.firstLongKey());
+        }
+    }
+
+    /** Relights everything queued in every world. */
+    public static void flushAll() {
+        for (LightQueue queue : BY_WORLD.values()) {
+            queue.flushWorld();
+        }
+    }
+
+    private void relight(long pos) {
+        size--;
+        world.checkLight(BlockPos.fromLong(pos));
+    }
+
+    /** Relights chunks about to be sent to players for the first time, their packets must carry the final light. */
+    private void flushUnsent() {
+        if (pending.isEmpty()) {
+            return;
+        }
+        long[] chunks = pending.keySet().toLongArray();
+        for (long chunk : chunks) {
+            PlayerChunkMapEntry entry = world.getPlayerChunkMap().getEntry((int) chunk, (int) (chunk >> 32));
+            if (entry != null && !entry.isSentToPlayers()) {
+                flush(chunk);
+            }
+        }
+    }
+
+    public static String describe() {
+        int queued = 0;
+        for (LightQueue queue : BY_WORLD.values()) {
+            queued += queue.size;
+        }
+        return String.format("%d queued, %d checks done, %.1f checks/tick, %.2f ms/tick", queued, processed, checksPerTick, millisPerTick);
+    }
+
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        // The player chunk map sends chunks during the world tick
+        if (event.phase == TickEvent.Phase.START) {
+            LightQueue queue = BY_WORLD.get(event.world);
+            if (queue != null) {
+                queue.flushUnsent();
+            }
+        }
+    }
+
+    @SubscribeEvent
+    public static void onServerTick(TickEvent.ServerTickEvent event) {
+        if (event.phase == TickEvent.Phase.START) {
+            // The tick counter is incremented after this event, the autosave runs before the end of the tick
+            MinecraftServer server = FMLCommonHandler.instance().getMinecraftServerInstance();
+            if (server != null && (server.getTickCounter() + 1) % AUTOSAVE_INTERVAL == 0) {
+                flushAll();
+            }
+            return;
+        }
+        long start = System.nanoTime();
+        long deadline = start + (long) (WorkshopConfig.lighting.budgetMillis * TimeUnit.MILLISECONDS.toNanos(1));
+        for (LightQueue queue : BY_WORLD.values()) {
+            int checks = queue.process(deadline);
+            processed += checks;
+            windowChecks += checks;
+        }
+        windowNanos += System.nanoTime() - start;
+        if (++ticks % 20 == 0) {
+            checksPerTick = windowChecks / 20.0;
+            millisPerTick = windowNanos / 1e6 / 20;
+            windowChecks = 0;
+            windowNanos = 0;
+        }
+    }
+
+    @SubscribeEvent
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        // Fired before the chunk is saved
+        LightQueue queue = BY_WORLD.get(event.getWorld());
+        if (queue != null) {
+            queue.flush(ChunkPos.asLong(event.getChunk().x, event.getChunk().z));
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        BY_WORLD.remove(event.getWorld());
+    }
+}
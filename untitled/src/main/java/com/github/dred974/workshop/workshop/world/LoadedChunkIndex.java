@@ -0,0 +1,214 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import it.unimi.dsi.fastutil.HashCommon;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.gen.ChunkProviderServer;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index of the chunks loaded in a server world that any thread may query, unlike ChunkProviderServer's loadedChunks.
+ * <p>
+ * The main thread is the only writer, following chunk load and unload events. Chunks are stored in an open addressing
+ * table keyed by their position; readers never lock and see every change made before their lookup started. A chunk
+ * returned to a worker thread may be unloaded right after: workers must only read from it, and treat the result as a
+ * snapshot.
+ * <p>
+ * The unload queue of the chunk provider (droppedChunks) is also replaced by a primitive long set, so queueing and
+ * scanning chunks for unloading no longer allocates a map entry per chunk.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class LoadedChunkIndex {
+
+    private static final int MIN_CAPACITY = 1024;
+    private static final Object REMOVED = new Object();
+    private static final Map<World, LoadedChunkIndex> BY_WORLD = new ConcurrentHashMap<>();
+
+    /** Replaced as a whole when resized. Holds chunks, {@link #REMOVED} or null, and is never more than half full. */
+    private volatile AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(MIN_CAPACITY);
+    private volatile int size;
+    /** Live and removed slots. Main thread only. */
+    private int used;
+
+    private LoadedChunkIndex() {
+    }
+
+    @Nullable
+    public static LoadedChunkIndex get(World world) {
+        return BY_WORLD.get(world);
+    }
+
+    /** Returns the loaded chunk at the given position, or null. Safe to call from any thread. */
+    @Nullable
+    public Chunk get(int x, int z) {
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1;
+        for (int i = slot(x, z, mask); ; i = (i + 1) & mask) {
+            Object value = table.get(i);
+            if (value == null) {
+                return null;
+            }
+            if (value != REMOVED) {
+                Chunk chunk = (Chunk) value;
+                if (chunk.x == x && chunk.z == z) {
+                    return chunk;
+                }
+            }
+        }
+    }
+
+    public boolean isLoaded(int x, int z) {
+        return get(x, z) != null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Returns the chunks loaded at the time of the call. Safe to call from any thread. */
+    public List<Chunk> snapshot() {
+        AtomicReferenceArray<Object> table = slots;
+        List<Chunk> chunks = new ArrayList<>(size);
+        for (int i = 0; i < table.length(); i++) {
+            Object value = table.get(i);
+            if (value != null && value != REMOVED) {
+                chunks.add((Chunk) value);
+            }
+        }
+        return chunks;
+    }
+
+    private void put(Chunk chunk) {
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1;
+        int free = -1;
+        int i = slot(chunk.x, chunk.z, mask);
+        for (Object value; (value = table.get(i)) != null; i = (i + 1) & mask) {
+            if (value == REMOVED) {
+                if (free < 0) {
+                    free = i;
+                }
+            } else if (((Chunk) value).x == chunk.x && ((Chunk) value).z == chunk.z) {
+                table.set(i, chunk);
+                return;
+            }
+        }
+        if (free >= 0) {
+            table.set(free, chunk);
+        } else {
+            if ((used + 1) * 2 > table.length()) {
+                rehash(size + 1);
+                put(chunk);
+                return;
+            }
+            table.set(i, chunk);
+            used++;
+        }
+        size++;
+    }
+
+    private void remove(Chunk chunk) {
+        AtomicReferenceArray<Object> table = slots;
+        int mask = table.length() - 1;
+        for (int i = slot(chunk.x, chunk.z, mask); ; i = (i + 1) & mask) {
+            Object value = table.get(i);
+            if (value == null) {
+                return;
+            }
+            // Identity, so a stale unload never removes a newer chunk at the same position
+            if (value == chunk) {
+                table.set(i, REMOVED);
+                size--;
+                return;
+            }
+        }
+    }
+
+    /** Copies the live chunks into a new table sized for the given count, dropping removed slots. */
+    private void rehash(int count) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < count * 4) {
+            capacity <<= 1;
+        }
+        AtomicReferenceArray<Object> old = slots;
+        AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < old.length(); j++) {
+            Object value = old.get(j);
+            if (value != null && value != REMOVED) {
+                Chunk chunk = (Chunk) value;
+                int i = slot(chunk.x, chunk.z, mask);
+                while (table.get(i) != null) {
+                    i = (i + 1) & mask;
+                }
+                table.set(i, chunk);
+            }
+        }
+        used = size;
+        slots = table;
+    }
+
+    private static int slot(int x, int z, int mask) {
+        return (int) HashCommon.mix(ChunkPos.asLong(x, z)) & mask;
+    }
+
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.getWorld();
+        ChunkProviderServer provider = world.getChunkProvider();
+        LoadedChunkIndex index = new LoadedChunkIndex();
+        for (Chunk chunk : provider.getLoadedChunks()) {
+            index.put(chunk);
+        }
+        BY_WORLD.put(world, index);
+
+        Set<Long> dropped = Reflection.getField(ChunkProviderServer.class, provider, "droppedChunks", "field_73248_b");
+        // Leave sets installed by other mods alone
+        if (dropped != null && dropped.getClass() == HashSet.class
+                && !Reflection.setField(ChunkProviderServer.class, provider, new LongOpenHashSet(dropped), "droppedChunks", "field_73248_b")) {
+            Workshop.LOGGER.warn("Could not replace the chunk unload queue in dimension {}", world.provider.getDimension());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        BY_WORLD.remove(event.getWorld());
+    }
+
+    @SubscribeEvent
+    public static void onChunkLoad(ChunkEvent.Load event) {
+        LoadedChunkIndex index = BY_WORLD.get(event.getWorld());
+        if (index != null) {
+            index.put(event.getChunk());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        LoadedChunkIndex index = BY_WORLD.get(event.getWorld());
+        if (index != null) {
+            index.remove(event.getChunk());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.WorldType;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+import net.minecraftforge.common.ForgeChunkManager;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import java.util.Iterator;
+
+/**
+ * Random ticking of the chunks around players, in place of the loop at the end of WorldServer.updateBlocks.
+ * <p>
+ * Vanilla picks randomTickSpeed positions in every section holding a randomly ticking block, and reads the block at
+ * each of them. Here sections are turned into {@link TickingSection}s the first time they are ticked, and attempts only
+ * land on their indexed ticking blocks, with the same odds per block as vanilla. Sections with no ticking block are
+ * not visited past a counter check, and no position is allocated unless randomTicks.reuseBlockPos is off.
+ * <p>
+ * Runs at the end of the world tick, on the same chunks as vanilla: those watched by players and those forced by
+ * Forge's chunk loading.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class RandomTicks {
+
+    private static final BlockPos.MutableBlockPos REUSED = new BlockPos.MutableBlockPos();
+    private static final Generator random = new Generator();
+
+    private static long attempts;
+    private static long ticked;
+    private static long converted;
+
+    private RandomTicks() {
+    }
+
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        if (event.phase != TickEvent.Phase.END || !(event.world instanceof WorldServer) || !WorkshopConfig.randomTicks.enabled) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.world;
+        int speed = world.getGameRules().getInt("randomTickSpeed");
+        if (speed <= 0 || world.getWorldInfo().getTerrainType() == WorldType.DEBUG_ALL_BLOCK_STATES) {
+            return;
+        }
+        BlockPos.MutableBlockPos reused = WorkshopConfig.randomTicks.reuseBlockPos ? REUSED : null;
+        Iterator<Chunk> chunks = ForgeChunkManager.getPersistentChunksIterableFor(world, world.getPlayerChunkMap().getChunkIterator());
+        while (chunks.hasNext()) {
+            Chunk chunk = chunks.next();
+            ExtendedBlockStorage[] sections = chunk.getBlockStorageArray();
+            for (int i = 0; i < sections.length; i++) {
+                ExtendedBlockStorage section = sections[i];
+                if (section instanceof TickingSection) {
+                    TickingSection ticking = (TickingSection) section;
+                    if (ticking.getTickableCount() > 0) {
+                        attempts += speed;
+                        ticked += ticking.tick(world, chunk.x << 4, chunk.z << 4, speed, random, reused);
+                    }
+                } else if (section != Chunk.NULL_BLOCK_STORAGE && section.getClass() == ExtendedBlockStorage.class) {
+                    // Vanilla ticked it this tick, Workshop takes over from the next one
+                    TickingSection ticking = TickingSection.of(section);
+                    if (ticking != null) {
+                        sections[i] = ticking;
+                        converted++;
+                    }
+                }
+            }
+        }
+    }
+
+    public static String describe() {
+        return String.format("%d random tick attempts, %d blocks ticked, %d sections indexed", attempts, ticked, converted);
+    }
+
+    /** Vanilla's linear congruential generator, taking its 12 highest bits. */
+    static final class Generator {
+
+        private int seed = (int) System.nanoTime();
+
+        int next4096() {
+            seed = seed * 3 + 1013904223;
+            return seed >>> 20;
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.Entity;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.util.SoundCategory;
+import net.minecraft.util.SoundEvent;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.IWorldEventListener;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.world.ChunkEvent;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import javax.annotation.Nullable;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Tracks a version number per 16x16x16 chunk section of a server world, bumped whenever a block or light value in the
+ * section changes through the world. Caches built from section contents remember the version they were built from and
+ * are rebuilt once it moves. Sections that never changed since their chunk was loaded have version 0.
+ * <p>
+ * Changes made directly on a Chunk, bypassing the World, are not seen: consumers must tolerate that, for example by
+ * rebuilding periodically.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public final class SectionVersions implements IWorldEventListener {
+
+    private static final Map<World, SectionVersions> BY_WORLD = new WeakHashMap<>();
+
+    private final Long2ObjectMap<int[]> versions = new Long2ObjectOpenHashMap<>();
+    private int counter;
+
+    private SectionVersions() {
+    }
+
+    @Nullable
+    public static SectionVersions get(World world) {
+        return BY_WORLD.get(world);
+    }
+
+    public int getVersion(int chunkX, int sectionY, int chunkZ) {
+        int[] chunk = versions.get(ChunkPos.asLong(chunkX, chunkZ));
+        return chunk == null || sectionY < 0 || sectionY >= 16 ? 0 : chunk[sectionY];
+    }
+
+    public void markChanged(int x, int y, int z) {
+        if (y < 0 || y >= 256) {
+            return;
+        }
+        long key = ChunkPos.asLong(x >> 4, z >> 4);
+        int[] chunk = versions.get(key);
+        if (chunk == null) {
+            chunk = new int[16];
+            versions.put(key, chunk);
+        }
+        chunk[y >> 4] = ++counter;
+    }
+
+    @Override
+    public void notifyBlockUpdate(World world, BlockPos pos, IBlockState oldState, IBlockState newState, int flags) {
+        markChanged(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    @Override
+    public void notifyLightSet(BlockPos pos) {
+        markChanged(pos.getX(), pos.getY(), pos.getZ());
+    }
+
+    @Override
+    public void markBlockRangeForRenderUpdate(int x1, int y1, int z1, int x2, int y2, int z2) {
+        for (int x = x1 >> 4; x <= x2 >> 4; x++) {
+            for (int z = z1 >> 4; z <= z2 >> 4; z++) {
+                for (int y = Math.max(0, y1) >> 4; y <= Math.min(255, y2) >> 4; y++) {
+                    markChanged(x << 4, y << 4, z << 4);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void playSoundToAllNearExcept(@Nullable EntityPlayer player, SoundEvent sound, SoundCategory category, double x, double y, double z, float volume, float pitch) {
+    }
+
+    @Override
+    public void playRecord(SoundEvent sound, BlockPos pos) {
+    }
+
+    @Override
+    public void spawnParticle(int particleID, boolean ignoreRange, double x, double y, double z, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+    }
+
+    @Override
+    public void spawnParticle(int id, boolean ignoreRange, boolean minimiseLevel, double x, double y, double z, double xSpeed, double ySpeed, double zSpeed, int... parameters) {
+    }
+
+    @Override
+    public void onEntityAdded(Entity entity) {
+    }
+
+    @Override
+    public void onEntityRemoved(Entity entity) {
+    }
+
+    @Override
+    public void broadcastSound(int soundID, BlockPos pos, int data) {
+    }
+
+    @Override
+    public void playEvent(EntityPlayer player, int type, BlockPos pos, int data) {
+    }
+
+    @Override
+    public void sendBlockBreakProgress(int breakerId, BlockPos pos, int progress) {
+    }
+
+    @SubscribeEvent
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (event.getWorld() instanceof WorldServer) {
+            SectionVersions listener = new SectionVersions();
+            BY_WORLD.put(event.getWorld(), listener);
+            event.getWorld().addEventListener(listener);
+        }
+    }
+
+    @SubscribeEvent
+    public static void onChunkUnload(ChunkEvent.Unload event) {
+        SectionVersions listener = BY_WORLD.get(event.getWorld());
+        if (listener != null) {
+            listener.versions.remove(ChunkPos.asLong(event.getChunk().x, event.getChunk().z));
+        }
+    }
+}
@@ -0,0 +1,543 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ReferenceOpenHashSet;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.world.NextTickListEntry;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Timing wheel holding a world's scheduled block ticks, in place of WorldServer's pendingTickListEntriesTreeSet.
+ * <p>
+ * Ticks due within {@link #SLOTS} ticks of the world time go to the slot of their due time, kept sorted by priority
+ * and insertion like vanilla's order, so scheduling and running them costs O(1) instead of a tree rebalance. Ticks
+ * due later wait in a small tree and move into the wheel as time advances. Ticks left over when WorldServer hits its
+ * limit of 65536 per tick move to an ordered overdue tree, and run first on the next tick, oldest first.
+ * <p>
+ * Ticks are also indexed by chunk, so a chunk save collects its own ticks through {@link #getPendingBlockUpdates}
+ * instead of scanning every tick of the world. The backing tree of TreeSet stays empty, so every method reading it is
+ * overridden: the ones WorldServer uses and the other whole-set operations work on the wheel, range views, neighbour
+ * lookups and clone throw UnsupportedOperationException.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class TickWheel extends TreeSet<NextTickListEntry> {
+
+    private static final long serialVersionUID = 1L;
+    private static final int SLOTS = 256;
+    private static final int MASK = SLOTS - 1;
+    private static final Map<World, TickWheel> BY_WORLD = new ConcurrentHashMap<>();
+
+    private final WorldServer world;
+    /** Ticks being run by WorldServer, which its own chunk scan also covers. */
+    private final List<NextTickListEntry> thisTick;
+    private final Slot[] slots = new Slot[SLOTS];
+    private final TreeSet<NextTickListEntry> overdue = new TreeSet<>();
+    private final TreeSet<NextTickListEntry> later = new TreeSet<>();
+    private final Long2ObjectOpenHashMap<Set<NextTickListEntry>> byChunk = new Long2ObjectOpenHashMap<>();
+    /** Due time of the first slot, never after the world time. */
+    private long base;
+    /** No slot before this due time holds a tick. */
+    private long scanFrom;
+    private int size;
+
+    private TickWheel(WorldServer world, List<NextTickListEntry> thisTick) {
+        this.world = world;
+        this.thisTick = thisTick;
+        this.base = world.getTotalWorldTime();
+        this.scanFrom = base;
+        for (int i = 0; i < SLOTS; i++) {
+            slots[i] = new Slot();
+        }
+    }
+
+    @Override
+    public boolean add(NextTickListEntry entry) {
+        advance();
+        place(entry);
+        byChunk.computeIfAbsent(chunkKey(entry.position), key -> new ReferenceOpenHashSet<>()).add(entry);
+        size++;
+        return true;
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        if (!(o instanceof NextTickListEntry)) {
+            return false;
+        }
+        NextTickListEntry entry = (NextTickListEntry) o;
+        long time = entry.scheduledTime;
+        boolean removed;
+        if (time < base) {
+            removed = overdue.remove(entry);
+        } else if (time < base + SLOTS) {
+            removed = slots[(int) time & MASK].remove(entry);
+        } else {
+            removed = later.remove(entry);
+        }
+        if (removed) {
+            long key = chunkKey(entry.position);
+            Set<NextTickListEntry> chunkTicks = byChunk.get(key);
+            if (chunkTicks != null && chunkTicks.remove(entry) && chunkTicks.isEmpty()) {
+                byChunk.remove(key);
+            }
+            size--;
+        }
+        return removed;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        if (!(o instanceof NextTickListEntry)) {
+            return false;
+        }
+        NextTickListEntry entry = (NextTickListEntry) o;
+        Set<NextTickListEntry> chunkTicks = byChunk.get(chunkKey(entry.position));
+        if (chunkTicks == null) {
+            return false;
+        }
+        for (NextTickListEntry other : chunkTicks) {
+            if (other.compareTo(entry) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public NextTickListEntry first() {
+        advance();
+        if (!overdue.isEmpty()) {
+            return overdue.first();
+        }
+        for (long time = scanFrom; time < base + SLOTS; time++) {
+            Slot slot = slots[(int) time & MASK];
+            if (!slot.isEmpty()) {
+                scanFrom = time;
+                return slot.first();
+            }
+        }
+        scanFrom = base + SLOTS;
+        if (!later.isEmpty()) {
+            return later.first();
+        }
+        throw new NoSuchElementException();
+    }
+
+    @Override
+    @Nullable
+    public NextTickListEntry pollFirst() {
+        if (isEmpty()) {
+            return null;
+        }
+        NextTickListEntry first = first();
+        remove(first);
+        return first;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public void clear() {
+        for (Slot slot : slots) {
+            slot.clear();
+        }
+        overdue.clear();
+        later.clear();
+        byChunk.clear();
+        size = 0;
+    }
+
+    @Override
+    public NextTickListEntry last() {
+        advance();
+        if (!later.isEmpty()) {
+            return later.last();
+        }
+        for (long time = base + SLOTS - 1; time >= scanFrom; time--) {
+            Slot slot = slots[(int) time & MASK];
+            if (!slot.isEmpty()) {
+                return slot.last();
+            }
+        }
+        if (!overdue.isEmpty()) {
+            return overdue.last();
+        }
+        throw new NoSuchElementException();
+    }
+
+    @Override
+    @Nullable
+    public NextTickListEntry pollLast() {
+        if (isEmpty()) {
+            return null;
+        }
+        NextTickListEntry last = last();
+        remove(last);
+        return last;
+    }
+
+    /** Adds one by one, TreeSet's own addAll would fill its unused tree when the wheel looks empty. */
+    @Override
+    public boolean addAll(Collection<? extends NextTickListEntry> c) {
+        boolean changed = false;
+        for (NextTickListEntry entry : c) {
+            changed |= add(entry);
+        }
+        return changed;
+    }
+
+    /** Iterates over a snapshot in vanilla's order, removing through the iterator removes from the wheel. */
+    @Override
+    public Iterator<NextTickListEntry> iterator() {
+        return new Itr(snapshot().iterator());
+    }
+
+    @Override
+    public Iterator<NextTickListEntry> descendingIterator() {
+        List<NextTickListEntry> snapshot = snapshot();
+        Collections.reverse(snapshot);
+        return new Itr(snapshot.iterator());
+    }
+
+    @Override
+    public Spliterator<NextTickListEntry> spliterator() {
+        return Spliterators.spliterator(snapshot(), Spliterator.DISTINCT | Spliterator.ORDERED);
+    }
+
+    @Override
+    public NavigableSet<NextTickListEntry> descendingSet() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NextTickListEntry lower(NextTickListEntry e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NextTickListEntry floor(NextTickListEntry e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NextTickListEntry ceiling(NextTickListEntry e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NextTickListEntry higher(NextTickListEntry e) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableSet<NextTickListEntry> subSet(NextTickListEntry fromElement, boolean fromInclusive, NextTickListEntry toElement, boolean toInclusive) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableSet<NextTickListEntry> headSet(NextTickListEntry toElement, boolean inclusive) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableSet<NextTickListEntry> tailSet(NextTickListEntry fromElement, boolean inclusive) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedSet<NextTickListEntry> subSet(NextTickListEntry fromElement, NextTickListEntry toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedSet<NextTickListEntry> headSet(NextTickListEntry toElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public SortedSet<NextTickListEntry> tailSet(NextTickListEntry fromElement) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object clone() {
+        throw new UnsupportedOperationException();
+    }
+
+    /** Every tick in vanilla's order. */
+    private List<NextTickListEntry> snapshot() {
+        List<NextTickListEntry> snapshot = new ArrayList<>(size);
+        snapshot.addAll(overdue);
+        for (long time = base; time < base + SLOTS; time++) {
+            slots[(int) time & MASK].addTo(snapshot);
+        }
+        snapshot.addAll(later);
+        return snapshot;
+    }
+
+    /** Moves the wheel up to the world time, turning ticks still in passed slots overdue. */
+    private void advance() {
+        long now = world.getTotalWorldTime();
+        if (now <= base) {
+            return;
+        }
+        long end = Math.min(now, base + SLOTS);
+        for (long time = Math.max(base, scanFrom); time < end; time++) {
+            slots[(int) time & MASK].drainTo(overdue);
+        }
+        base = now;
+        scanFrom = Math.max(scanFrom, base);
+        while (!later.isEmpty() && later.first().scheduledTime < base + SLOTS) {
+            place(later.pollFirst());
+        }
+    }
+
+    private void place(NextTickListEntry entry) {
+        long time = entry.scheduledTime;
+        if (time < base) {
+            overdue.add(entry);
+        } else if (time < base + SLOTS) {
+            slots[(int) time & MASK].add(entry);
+            scanFrom = Math.min(scanFrom, time);
+        } else {
+            later.add(entry);
+        }
+    }
+
+    /**
+     * Same result as vanilla's WorldServer.getPendingBlockUpdates(chunk, false), which covers the chunk and the two
+     * blocks before it on each axis, collected from the chunk index.
+     */
+    @Nullable
+    private List<NextTickListEntry> collect(Chunk chunk) {
+        int minX = (chunk.x << 4) - 2;
+        int maxX = (chunk.x << 4) + 16;
+        int minZ = (chunk.z << 4) - 2;
+        int maxZ = (chunk.z << 4) + 16;
+        List<NextTickListEntry> result = null;
+        for (int dx = -1; dx <= 0; dx++) {
+            for (int dz = -1; dz <= 0; dz++) {
+                Set<NextTickListEntry> chunkTicks = byChunk.get(ChunkPos.asLong(chunk.x + dx, chunk.z + dz));
+                if (chunkTicks == null) {
+                    continue;
+                }
+                for (NextTickListEntry entry : chunkTicks) {
+                    if (inBox(entry.position, minX, maxX, minZ, maxZ)) {
+                        if (result == null) {
+                            result = new ArrayList<>();
+                        }
+                        result.add(entry);
+                    }
+                }
+            }
+        }
+        if (result != null) {
+            result.sort(null);
+        }
+        for (NextTickListEntry entry : thisTick) {
+            if (inBox(entry.position, minX, maxX, minZ, maxZ)) {
+                if (result == null) {
+                    result = new ArrayList<>();
+                }
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private static boolean inBox(BlockPos pos, int minX, int maxX, int minZ, int maxZ) {
+        return pos.getX() >= minX && pos.getX() < maxX && pos.getZ() >= minZ && pos.getZ() < maxZ;
+    }
+
+    private static long chunkKey(BlockPos pos) {
+        return ChunkPos.asLong(pos.getX() >> 4, pos.getZ() >> 4);
+    }
+
+    /** The scheduled ticks to save with a chunk, through the chunk index when the world uses a tick wheel. */
+    @Nullable
+    public static List<NextTickListEntry> getPendingBlockUpdates(World world, Chunk chunk) {
+        TickWheel wheel = BY_WORLD.get(world);
+        return wheel != null ? wheel.collect(chunk) : world.getPendingBlockUpdates(chunk, false);
+    }
+
+    @Nullable
+    public static TickWheel get(World world) {
+        return BY_WORLD.get(world);
+    }
+
+    public String describe() {
+        return String.format("%d scheduled ticks, %d overdue, %d due in more than %d ticks, in %d chunks",
+                size, overdue.size(), later.size(), SLOTS, byChunk.size());
+    }
+
+    /** Iterator over a snapshot, removing from the wheel. */
+    private final class Itr implements Iterator<NextTickListEntry> {
+
+        private final Iterator<NextTickListEntry> iterator;
+        private NextTickListEntry last;
+
+        Itr(Iterator<NextTickListEntry> iterator) {
+            this.iterator = iterator;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public NextTickListEntry next() {
+            last = iterator.next();
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            TickWheel.this.remove(last);
+            last = null;
+        }
+    }
+
+    /** Ticks due at the same time, sorted by priority and then insertion. */
+    private static final class Slot {
+
+        private NextTickListEntry[] entries = new NextTickListEntry[4];
+        private int head;
+        private int tail;
+
+        boolean isEmpty() {
+            return head == tail;
+        }
+
+        NextTickListEntry first() {
+            return entries[head];
+        }
+
+        NextTickListEntry last() {
+            return entries[tail - 1];
+        }
+
+        void add(NextTickListEntry entry) {
+            if (tail == entries.length) {
+                if (head > 0) {
+                    System.arraycopy(entries, head, entries, 0, tail - head);
+                    Arrays.fill(entries, tail - head, tail, null);
+                    tail -= head;
+                    head = 0;
+                }
+                if (tail == entries.length) {
+                    entries = Arrays.copyOf(entries, entries.length * 2);
+                }
+            }
+            // Usually appended, only a higher priority moves it back
+            int i = tail++;
+            while (i > head && entries[i - 1].compareTo(entry) > 0) {
+                entries[i] = entries[i - 1];
+                i--;
+            }
+            entries[i] = entry;
+        }
+
+        boolean remove(NextTickListEntry entry) {
+            if (head < tail && entries[head] == entry) {
+                entries[head++] = null;
+                if (head == tail) {
+                    head = tail = 0;
+                }
+                return true;
+            }
+            for (int i = head; i < tail; i++) {
+                if (entries[i] == entry || entries[i].compareTo(entry) == 0) {
+                    System.arraycopy(entries, i + 1, entries, i, tail - i - 1);
+                    entries[--tail] = null;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void addTo(List<NextTickListEntry> list) {
+            for (int i = head; i < tail; i++) {
+                list.add(entries[i]);
+            }
+        }
+
+        void drainTo(TreeSet<NextTickListEntry> set) {
+            for (int i = head; i < tail; i++) {
+                set.add(entries[i]);
+                entries[i] = null;
+            }
+            head = tail = 0;
+        }
+
+        void clear() {
+            Arrays.fill(entries, null);
+            head = tail = 0;
+        }
+    }
+
+    /** Swaps the vanilla tick tree of a server world, keeping the ticks already scheduled. */
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.getWorld();
+        TreeSet<NextTickListEntry> vanilla = Reflection.getField(WorldServer.class, world, "pendingTickListEntriesTreeSet", "field_73065_O");
+        List<NextTickListEntry> thisTick = Reflection.getField(WorldServer.class, world, "pendingTickListEntriesThisTick", "field_94579_S");
+        if (vanilla == null || thisTick == null || vanilla.getClass() != TreeSet.class) {
+            return;
+        }
+        TickWheel wheel = new TickWheel(world, thisTick);
+        for (NextTickListEntry entry : vanilla) {
+            wheel.add(entry);
+        }
+        if (Reflection.setField(WorldServer.class, world, wheel, "pendingTickListEntriesTreeSet", "field_73065_O")) {
+            BY_WORLD.put(world, wheel);
+        } else {
+            Workshop.LOGGER.warn("Could not install the tick wheel in dimension {}", world.provider.getDimension());
+        }
+    }
+
+    @SubscribeEvent
+    public static void onWorldUnload(WorldEvent.Unload event) {
+        BY_WORLD.remove(event.getWorld());
+    }
+}
@@ -0,0 +1,138 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.block.Block;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.world.World;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.Arrays;
+
+/**
+ * Chunk section that keeps the positions of its randomly ticking blocks, so {@link RandomTicks} only picks among
+ * them. The index follows {@link #set} and is rebuilt by {@link #recalculateRefCounts}, which chunk loading calls
+ * once the section is read. Vanilla's random ticking skips these sections while Workshop's is enabled.
+ */
+public class TickingSection extends ExtendedBlockStorage {
+
+    private static final Field DATA = Reflection.findField(ExtendedBlockStorage.class, "data", "field_177488_d");
+    private static final short[] EMPTY = new short[0];
+
+    /** Index of each randomly ticking block, as x | z << 4 | y << 8. */
+    private short[] tickable = EMPTY;
+    private int count;
+
+    private TickingSection(int y, boolean storeSkylight) {
+        super(y, storeSkylight);
+    }
+
+    /** Returns a section sharing the blocks and light of the given one, or null if it cannot be taken over. */
+    @Nullable
+    public static TickingSection of(ExtendedBlockStorage section) {
+        if (DATA == null) {
+            return null;
+        }
+        TickingSection ticking = new TickingSection(section.getYLocation(), section.getSkyLight() != null);
+        try {
+            DATA.set(ticking, section.getData());
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        ticking.setBlockLight(section.getBlockLight());
+        if (section.getSkyLight() != null) {
+            ticking.setSkyLight(section.getSkyLight());
+        }
+        ticking.recalculateRefCounts();
+        return ticking;
+    }
+
+    @Override
+    public void set(int x, int y, int z, IBlockState state) {
+        boolean wasTicking = get(x, y, z).getBlock().getTickRandomly();
+        super.set(x, y, z, state);
+        boolean ticking = get(x, y, z).getBlock().getTickRandomly();
+        if (wasTicking != ticking) {
+            int index = x | z << 4 | y << 8;
+            if (ticking) {
+                add(index);
+            } else {
+                remove(index);
+            }
+        }
+    }
+
+    @Override
+    public void recalculateRefCounts() {
+        super.recalculateRefCounts();
+        count = 0;
+        if (!super.needsRandomTick()) {
+            tickable = EMPTY;
+            return;
+        }
+        for (int index = 0; index < 4096; index++) {
+            if (get(index & 15, index >> 8, index >> 4 & 15).getBlock().getTickRandomly()) {
+                add(index);
+            }
+        }
+    }
+
+    @Override
+    public boolean needsRandomTick() {
+        return !WorkshopConfig.randomTicks.enabled && super.needsRandomTick();
+    }
+
+    private void add(int index) {
+        if (count == tickable.length) {
+            tickable = Arrays.copyOf(tickable, Math.max(16, count * 2));
+        }
+        tickable[count++] = (short) index;
+    }
+
+    private void remove(int index) {
+        for (int i = 0; i < count; i++) {
+            if (tickable[i] == index) {
+                tickable[i] = tickable[--count];
+                return;
+            }
+        }
+    }
+
+    public int getTickableCount() {
+        return count;
+    }
+
+    /**
+     * Runs the given number of vanilla random tick attempts. Each attempt hits a ticking block with probability
+     * count / 4096, and then one chosen uniformly, like vanilla's pick among all 4096 positions. Attempts are drawn
+     * from the caller's generator. Returns the number of blocks ticked.
+     */
+    int tick(World world, int blockX, int blockZ, int attempts, RandomTicks.Generator random, @Nullable BlockPos.MutableBlockPos reused) {
+        int ticked = 0;
+        for (int i = 0; i < attempts && count > 0; i++) {
+            int slot = random.next4096();
+            if (slot >= count) {
+                continue;
+            }
+            int index = tickable[slot];
+            int x = index & 15;
+            int y = index >> 8 & 15;
+            int z = index >> 4 & 15;
+            IBlockState state = get(x, y, z);
+            Block block = state.getBlock();
+            if (!block.getTickRandomly()) {
+                // Changed through the block container directly, like vanilla's check
+                continue;
+            }
+            BlockPos pos = reused != null
+                    ? reused.setPos(blockX + x, getYLocation() + y, blockZ + z)
+                    : new BlockPos(blockX + x, getYLocation() + y, blockZ + z);
+            block.randomTick(world, pos, state, world.rand);
+            ticked++;
+        }
+        return ticked;
+    }
+}
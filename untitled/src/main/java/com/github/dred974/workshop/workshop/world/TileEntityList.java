@@ -0,0 +1,403 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.profiler.TickProfiler;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import it.unimi.dsi.fastutil.objects.Reference2IntOpenHashMap;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.ResourceLocation;
+import net.minecraft.world.World;
+import net.minecraft.world.WorldServer;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+import net.minecraftforge.fml.common.gameevent.TickEvent;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+
+/**
+ * Replacement for the ArrayLists holding the loaded and tickable tile entities of a server world.
+ * <p>
+ * Tile entities are grouped by class, so tile entities of the same type tick one after the other, and each group
+ * indexes its members: contains, remove and removeAll cost O(1) per element instead of a scan of the whole list.
+ * Removed slots are left empty and compacted at the end of the world's tick, outside of any iteration, so removing
+ * never shifts elements under an iterator, even one nested in another. Like a set, the list ignores a tile entity that
+ * is already in it.
+ * <p>
+ * The tickable list can tick types less often than every tick, as configured in tileEntities.tickIntervals. Throttled
+ * tile entities are only skipped by the iteration World.updateEntities does while ticking.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class TileEntityList extends AbstractList<TileEntity> {
+
+    private static Throttles throttles = new Throttles(new String[0]);
+    private static Field processingLoadedTiles;
+
+    @Nullable
+    private final World ticking;
+    private final Map<Class<?>, Group> byType = new HashMap<>();
+    private final List<Group> groups = new ArrayList<>();
+    private int size;
+    /** Bumped by every add and remove, invalidates the sequential access cache of {@link #get}. */
+    private int generation;
+    private int cachedGeneration = -1;
+    private int cachedIndex;
+    private int cachedGroup;
+    private int cachedSlot;
+
+    /** Ticking is the world whose tick loop iterates this list, or null if the list is never throttled. */
+    public TileEntityList(@Nullable World ticking) {
+        this.ticking = ticking;
+    }
+
+    @Override
+    public boolean add(TileEntity tileEntity) {
+        Group group = byType.get(tileEntity.getClass());
+        if (group == null) {
+            group = new Group(tileEntity.getClass());
+            byType.put(tileEntity.getClass(), group);
+            groups.add(group);
+        }
+        if (!group.add(tileEntity)) {
+            return false;
+        }
+        size++;
+        generation++;
+        return true;
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        Group group = o instanceof TileEntity ? byType.get(o.getClass()) : null;
+        return group != null && group.index.containsKey(o);
+    }
+
+    @Override
+    public boolean remove(Object o) {
+        Group group = o instanceof TileEntity ? byType.get(o.getClass()) : null;
+        if (group == null) {
+            return false;
+        }
+        int slot = group.index.getInt(o);
+        if (slot < 0) {
+            return false;
+        }
+        removeAt(group, slot);
+        return true;
+    }
+
+    @Override
+    public boolean removeAll(Collection<?> c) {
+        boolean changed = false;
+        for (Object o : c) {
+            changed |= remove(o);
+        }
+        return changed;
+    }
+
+    private void removeAt(Group group, int slot) {
+        group.index.removeInt(group.items[slot]);
+        group.items[slot] = null;
+        group.removed++;
+        size--;
+        generation++;
+    }
+
+    @Override
+    public void clear() {
+        byType.clear();
+        groups.clear();
+        size = 0;
+        generation++;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /** Positional access, kept for callers written against ArrayList. Sequential calls are O(1), random ones O(n). */
+    @Override
+    public TileEntity get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + size);
+        }
+        int current = 0;
+        int groupIndex = 0;
+        int slot = 0;
+        if (cachedGeneration == generation && cachedIndex <= index) {
+            current = cachedIndex;
+            groupIndex = cachedGroup;
+            slot = cachedSlot;
+        }
+        for (; groupIndex < groups.size(); groupIndex++, slot = 0) {
+            Group group = groups.get(groupIndex);
+            for (; slot < group.end; slot++) {
+                TileEntity tileEntity = group.items[slot];
+                if (tileEntity != null && current++ == index) {
+                    cachedGeneration = generation;
+                    cachedIndex = index;
+                    cachedGroup = groupIndex;
+                    cachedSlot = slot;
+                    return tileEntity;
+                }
+            }
+        }
+        throw new IllegalStateException("Tile entity list is corrupted");
+    }
+
+    @Override
+    public Iterator<TileEntity> iterator() {
+        boolean throttle = ticking != null && isTicking(ticking);
+        return new Itr(throttle ? ticking.getTotalWorldTime() : -1);
+    }
+
+    /** Drops removed slots and empty groups. Must not run while the list is iterated, which moves tile entities. */
+    private void compact() {
+        Iterator<Group> iterator = groups.iterator();
+        while (iterator.hasNext()) {
+            Group group = iterator.next();
+            if (group.end == group.removed) {
+                iterator.remove();
+                byType.remove(group.type);
+            } else if (group.removed > 0) {
+                group.compact();
+            }
+        }
+        generation++;
+    }
+
+    /** Returns the number of tile entities per type, largest first. */
+    public List<Map.Entry<String, Integer>> countByType() {
+        List<Map.Entry<String, Integer>> counts = new ArrayList<>();
+        for (Group group : groups) {
+            int count = group.end - group.removed;
+            if (count > 0) {
+                counts.add(new AbstractMap.SimpleImmutableEntry<>(group.name(), count));
+            }
+        }
+        counts.sort((a, b) -> b.getValue() - a.getValue());
+        return counts;
+    }
+
+    private static boolean isTicking(World world) {
+        if (processingLoadedTiles == null) {
+            processingLoadedTiles = Reflection.findField(World.class, "processingLoadedTiles", "field_147481_N");
+            if (processingLoadedTiles == null) {
+                return false;
+            }
+        }
+        try {
+            return processingLoadedTiles.getBoolean(world);
+        } catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    /** Returns the configured tick interval of a tile entity type, 1 meaning every tick. */
+    public static int getTickInterval(String type) {
+        return throttles().intervals.getOrDefault(type, 1);
+    }
+
+    /** Returns the parsed tick intervals, parsing them again after the config changed. */
+    private static Throttles throttles() {
+        if (throttles.source != WorkshopConfig.tileEntities.tickIntervals) {
+            throttles = new Throttles(WorkshopConfig.tileEntities.tickIntervals);
+        }
+        return throttles;
+    }
+
+    private final class Itr implements Iterator<TileEntity> {
+
+        /** Total world time of the tick being run, or -1 if nothing is throttled. */
+        private final long tick;
+        private int group;
+        private int slot;
+        private Group lastGroup;
+        private int lastSlot = -1;
+        private TileEntity last;
+
+        Itr(long tick) {
+            this.tick = tick;
+        }
+
+        @Override
+        public boolean hasNext() {
+            for (; group < groups.size(); group++, slot = 0) {
+                Group current = groups.get(group);
+                int interval = tick < 0 ? 1 : current.tickInterval();
+                for (; slot < current.end; slot++) {
+                    TileEntity tileEntity = current.items[slot];
+                    // Spread the tiles of a throttled type over the interval instead of ticking them all at once
+                    if (tileEntity != null && (interval == 1 || (tick + System.identityHashCode(tileEntity)) % interval == 0)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public TileEntity next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            lastGroup = groups.get(group);
+            lastSlot = slot++;
+            last = lastGroup.items[lastSlot];
+            if (tick >= 0) {
+                TickProfiler.setTicking(last);
+            }
+            return last;
+        }
+
+        @Override
+        public void remove() {
+            if (last == null) {
+                throw new IllegalStateException();
+            }
+            if (lastGroup.items[lastSlot] == last) {
+                removeAt(lastGroup, lastSlot);
+            } else {
+                // Already removed through the list, or by a nested iterator
+                TileEntityList.this.remove(last);
+            }
+            last = null;
+        }
+    }
+
+    private static final class Group {
+
+        final Class<?> type;
+        final Reference2IntOpenHashMap<TileEntity> index = new Reference2IntOpenHashMap<>();
+        TileEntity[] items = new TileEntity[16];
+        /** Slots in use, including removed ones. */
+        int end;
+        int removed;
+        private String name;
+        private Throttles throttlesSeen;
+        private int interval = 1;
+
+        Group(Class<?> type) {
+            this.type = type;
+            index.defaultReturnValue(-1);
+        }
+
+        boolean add(TileEntity tileEntity) {
+            if (index.containsKey(tileEntity)) {
+                return false;
+            }
+            if (end == items.length) {
+                items = Arrays.copyOf(items, items.length * 2);
+            }
+            index.put(tileEntity, end);
+            items[end++] = tileEntity;
+            return true;
+        }
+
+        /** Drops removed slots, keeping the order of the remaining tile entities. */
+        void compact() {
+            int live = 0;
+            for (int i = 0; i < end; i++) {
+                TileEntity tileEntity = items[i];
+                if (tileEntity != null) {
+                    if (live != i) {
+                        items[live] = tileEntity;
+                        index.put(tileEntity, live);
+                    }
+                    live++;
+                }
+            }
+            Arrays.fill(items, live, end, null);
+            end = live;
+            removed = 0;
+        }
+
+        String name() {
+            if (name == null) {
+                @SuppressWarnings("unchecked")
+                ResourceLocation key = TileEntity.getKey((Class<? extends TileEntity>) type);
+                name = key == null ? type.getName() : key.toString();
+            }
+            return name;
+        }
+
+        int tickInterval() {
+            Throttles current = throttles();
+            if (throttlesSeen != current) {
+                interval = current.intervals.getOrDefault(name(), 1);
+                throttlesSeen = current;
+            }
+            return interval;
+        }
+    }
+
+    private static final class Throttles {
+
+        final String[] source;
+        final Map<String, Integer> intervals = new HashMap<>();
+
+        Throttles(String[] source) {
+            this.source = source;
+            for (String entry : source) {
+                int separator = entry.lastIndexOf('=');
+                try {
+                    int interval = Integer.parseInt(entry.substring(separator + 1).trim());
+                    if (separator > 0 && interval >= 1) {
+                        intervals.put(entry.substring(0, separator).trim(), interval);
+                        continue;
+                    }
+                } catch (NumberFormatException ignored) {
+                }
+                Workshop.LOGGER.warn("Ignoring invalid tile entity tick interval '{}', expected <type>=<ticks>", entry);
+            }
+        }
+    }
+
+    /** Compacts the lists of a world once its tile entities have ticked and nothing iterates them. */
+    @SubscribeEvent
+    public static void onWorldTick(TickEvent.WorldTickEvent event) {
+        if (event.phase != TickEvent.Phase.END) {
+            return;
+        }
+        if (event.world.loadedTileEntityList instanceof TileEntityList) {
+            ((TileEntityList) event.world.loadedTileEntityList).compact();
+        }
+        if (event.world.tickableTileEntities instanceof TileEntityList) {
+            ((TileEntityList) event.world.tickableTileEntities).compact();
+        }
+    }
+
+    /** Swaps the tile entity lists of a server world for indexed ones, leaving lists installed by other mods alone. */
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        World world = event.getWorld();
+        if (world.loadedTileEntityList.getClass() != ArrayList.class || world.tickableTileEntities.getClass() != ArrayList.class) {
+            return;
+        }
+        TileEntityList loaded = new TileEntityList(null);
+        loaded.addAll(world.loadedTileEntityList);
+        TileEntityList tickable = new TileEntityList(world);
+        tickable.addAll(world.tickableTileEntities);
+        if (!Reflection.setField(World.class, world, loaded, "loadedTileEntityList", "field_147482_g")
+                || !Reflection.setField(World.class, world, tickable, "tickableTileEntities", "field_175730_i")) {
+            Workshop.LOGGER.warn("Could not install indexed tile entity lists in dimension {}", world.provider.getDimension());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.util.Reflection;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.util.math.AxisAlignedBB;
+import net.minecraft.world.chunk.BlockStateContainer;
+import net.minecraft.world.chunk.storage.ExtendedBlockStorage;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Field;
+
+/**
+ * Block container of a chunk section counting its writes, so the chunk save cache sees every change to the section
+ * whether or not it went through the world. Palette resizes count as writes too, which only costs a re-encode.
+ * <p>
+ * Once {@link CollisionQuery} asks for it, the container also keeps which of its blocks are plain cubes and which need
+ * their block's collision boxes, updated on every write. Living in the container rather than the section, neither
+ * depends on the section being a {@link TickingSection}.
+ */
+public final class TrackedBlockStateContainer extends BlockStateContainer {
+
+    private static final Field DATA = Reflection.findField(ExtendedBlockStorage.class, "data", "field_177488_d");
+
+    private int changes;
+
+    /** Blocks colliding as a full cube and blocks whose boxes come from their block, null until first queried. */
+    @Nullable
+    private long[] cubes;
+    private long[] complex;
+    private int colliding;
+    /** Cube boxes handed out so far, offset to their position. */
+    @Nullable
+    private AxisAlignedBB[] boxes;
+
+    private TrackedBlockStateContainer() {
+    }
+
+    /**
+     * Returns the tracked container of the given section, giving it one holding the same blocks first if needed, or
+     * null if the section cannot be taken over. Only call from the thread owning the section's world.
+     */
+    @Nullable
+    public static TrackedBlockStateContainer of(ExtendedBlockStorage section) {
+        if (section.getData() instanceof TrackedBlockStateContainer) {
+            return (TrackedBlockStateContainer) section.getData();
+        }
+        if (DATA == null) {
+            return null;
+        }
+        TrackedBlockStateContainer tracked = new TrackedBlockStateContainer();
+        for (int index = 0; index < 4096; index++) {
+            int x = index & 15;
+            int y = index >> 8;
+            int z = index >> 4 & 15;
+            tracked.set(x, y, z, section.get(x, y, z));
+        }
+        tracked.changes = 0;
+        try {
+            DATA.set(section, tracked);
+        } catch (IllegalAccessException e) {
+            return null;
+        }
+        return tracked;
+    }
+
+    @Override
+    protected void set(int index, IBlockState state) {
+        super.set(index, state);
+        changes++;
+        if (cubes != null) {
+            setShape(index, CollisionQuery.shapeOf(state));
+        }
+    }
+
+    /** Number of writes since the container was created. */
+    public int getChanges() {
+        return changes;
+    }
+
+    /** Returns whether any block of the container has collision boxes. */
+    boolean hasCollisions() {
+        if (cubes == null) {
+            indexShapes();
+        }
+        return colliding > 0;
+    }
+
+    /** Returns the {@link CollisionQuery} shape of the block at the given index, as x | z << 4 | y << 8. */
+    int getShape(int index) {
+        if (cubes == null) {
+            indexShapes();
+        }
+        long bit = 1L << index;
+        return (cubes[index >> 6] & bit) != 0 ? CollisionQuery.CUBE : (complex[index >> 6] & bit) != 0 ? CollisionQuery.COMPLEX : CollisionQuery.EMPTY;
+    }
+
+    /** Returns the box of the cube at the given index, within a section whose first block is at blockX, blockY, blockZ. */
+    AxisAlignedBB getCubeBox(int index, int blockX, int blockY, int blockZ) {
+        if (boxes == null) {
+            boxes = new AxisAlignedBB[4096];
+        }
+        AxisAlignedBB box = boxes[index];
+        if (box == null) {
+            int x = blockX + (index & 15);
+            int y = blockY + (index >> 8);
+            int z = blockZ + (index >> 4 & 15);
+            box = new AxisAlignedBB(x, y, z, x + 1, y + 1, z + 1);
+            boxes[index] = box;
+        }
+        return box;
+    }
+
+    private void indexShapes() {
+        cubes = new long[64];
+        complex = new long[64];
+        colliding = 0;
+        for (int index = 0; index < 4096; index++) {
+            setShape(index, CollisionQuery.shapeOf(get(index & 15, index >> 8, index >> 4 & 15)));
+        }
+    }
+
+    private void setShape(int index, int shape) {
+        long bit = 1L << index;
+        int word = index >> 6;
+        boolean wasColliding = ((cubes[word] | complex[word]) & bit) != 0;
+        boolean wasCube = (cubes[word] & bit) != 0;
+        cubes[word] = shape == CollisionQuery.CUBE ? cubes[word] | bit : cubes[word] & ~bit;
+        complex[word] = shape == CollisionQuery.COMPLEX ? complex[word] | bit : complex[word] & ~bit;
+        if (boxes != null && wasCube && shape != CollisionQuery.CUBE) {
+            boxes[index] = null;
+        }
+        if (wasColliding != (shape != CollisionQuery.EMPTY)) {
+            colliding += wasColliding ? -1 : 1;
+        }
+    }
+}
@@ -0,0 +1,474 @@
+package com.github.dred974.workshop.workshop.world;
+
+import com.github.dred974.workshop.workshop.Workshop;
+import com.github.dred974.workshop.workshop.config.WorkshopConfig;
+import com.github.dred974.workshop.workshop.util.Reflection;
+import io.netty.channel.Channel;
+import it.unimi.dsi.fastutil.longs.Long2ObjectLinkedOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.objects.ObjectIterator;
+import net.minecraft.block.state.IBlockState;
+import net.minecraft.entity.player.EntityPlayer;
+import net.minecraft.entity.player.EntityPlayerMP;
+import net.minecraft.network.Packet;
+import net.minecraft.network.play.server.SPacketBlockChange;
+import net.minecraft.network.play.server.SPacketChunkData;
+import net.minecraft.network.play.server.SPacketMultiBlockChange;
+import net.minecraft.server.management.PlayerChunkMap;
+import net.minecraft.server.management.PlayerChunkMapEntry;
+import net.minecraft.tileentity.TileEntity;
+import net.minecraft.util.math.BlockPos;
+import net.minecraft.util.math.ChunkPos;
+import net.minecraft.util.math.MathHelper;
+import net.minecraft.world.WorldServer;
+import net.minecraft.world.chunk.Chunk;
+import net.minecraftforge.common.ForgeModContainer;
+import net.minecraftforge.event.world.WorldEvent;
+import net.minecraftforge.fml.common.Mod;
+import net.minecraftforge.fml.common.eventhandler.EventPriority;
+import net.minecraftforge.fml.common.eventhandler.SubscribeEvent;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Player chunk map that takes over the broadcasting of block changes from PlayerChunkMapEntry.
+ * <p>
+ * Vanilla records at most Forge's clumping threshold of changed positions per chunk and tick, and resends every touched
+ * section once it is exceeded. Here every changed position is kept, per section, and each section is sent the cheaper
+ * way: as part of a multi block change while it has less than network.sectionResendThreshold changes, or as a section
+ * resend above that. Changes may also be held for network.blockChangeDelayTicks ticks, so a machine touching the same
+ * chunk every tick sends one batch instead of one per tick.
+ * <p>
+ * It also decides when players start watching the chunks around them. Vanilla joins a player to its whole view area at
+ * once, so on login or teleport every chunk already loaded is sent right away in no particular order. Here the chunks
+ * a player should watch are queued and joined at most network.chunkSendsPerSecond at a time, nearest and in front of
+ * the player first, and not at all while the player's connection is not writable. Chunks are left as soon as they are
+ * out of view, like vanilla.
+ */
+@Mod.EventBusSubscriber(modid = Workshop.MOD_ID)
+public class WorkshopPlayerChunkMap extends PlayerChunkMap {
+
+    private static final LongAdder singles = new LongAdder();
+    private static final LongAdder multis = new LongAdder();
+    private static final LongAdder sectionResends = new LongAdder();
+    private static final LongAdder vanillaResends = new LongAdder();
+    private static final LongAdder chunksJoined = new LongAdder();
+    private static final LongAdder writeStalls = new LongAdder();
+
+    /** How much cheaper a chunk straight ahead is than one at the same distance to the side, and one behind dearer. */
+    private static final double VIEW_BIAS = 0.4;
+
+    private static final Field PLAYERS = Reflection.findField(PlayerChunkMap.class, "players", "field_72699_b");
+    private static final Field VIEW_RADIUS = Reflection.findField(PlayerChunkMap.class, "playerViewRadius", "field_72698_e");
+    private static final Method GET_OR_CREATE_ENTRY = Reflection.findMethod(PlayerChunkMap.class, "getOrCreateEntry", "func_187302_c", PlayerChunkMapEntry.class, int.class, int.class);
+    private static final Method MARK_SORT_PENDING = Reflection.findMethod(PlayerChunkMap.class, "markSortPending", "func_187306_e", void.class);
+    /** Whether chunk joins can be staged, vanilla joins everything at once otherwise. */
+    private static final boolean STAGED = PLAYERS != null && VIEW_RADIUS != null && GET_OR_CREATE_ENTRY != null;
+
+    private final WorldServer world;
+    private final Long2ObjectLinkedOpenHashMap<Changes> changes = new Long2ObjectLinkedOpenHashMap<>();
+    private final Map<EntityPlayerMP, Viewer> viewers = new HashMap<>();
+    private int ticks;
+
+    public WorkshopPlayerChunkMap(WorldServer world) {
+        super(world);
+        this.world = world;
+    }
+
+    @Override
+    public void addPlayer(EntityPlayerMP player) {
+        if (!STAGED) {
+            LightQueue.flushArea(world, (int) player.posX >> 4, (int) player.posZ >> 4, fallbackViewRadius());
+            super.addPlayer(player);
+            return;
+        }
+        player.managedPosX = player.posX;
+        player.managedPosZ = player.posZ;
+        Viewer viewer = new Viewer();
+        viewers.put(player, viewer);
+        players().add(player);
+        retarget(player, viewer);
+        markSortPending();
+    }
+
+    @Override
+    public void removePlayer(EntityPlayerMP player) {
+        Viewer viewer = viewers.remove(player);
+        if (viewer == null) {
+            super.removePlayer(player);
+            return;
+        }
+        LongIterator iterator = viewer.joined.iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextLong();
+            PlayerChunkMapEntry entry = getEntry((int) key, (int) (key >> 32));
+            if (entry != null) {
+                entry.removePlayer(player);
+            }
+        }
+        players().remove(player);
+        markSortPending();
+    }
+
+    @Override
+    public void updateMovingPlayer(EntityPlayerMP player) {
+        Viewer viewer = viewers.get(player);
+        if (viewer == null) {
+            LightQueue.flushArea(world, (int) player.posX >> 4, (int) player.posZ >> 4, fallbackViewRadius());
+            super.updateMovingPlayer(player);
+            return;
+        }
+        double dx = player.managedPosX - player.posX;
+        double dz = player.managedPosZ - player.posZ;
+        // Same hysteresis as vanilla
+        if (dx * dx + dz * dz < 64 || ((int) player.posX >> 4 == (int) player.managedPosX >> 4 && (int) player.posZ >> 4 == (int) player.managedPosZ >> 4)) {
+            return;
+        }
+        retarget(player, viewer);
+        player.managedPosX = player.posX;
+        player.managedPosZ = player.posZ;
+        markSortPending();
+    }
+
+    @Override
+    public void setPlayerViewRadius(int radius) {
+        // Also called by the super constructor, before the viewers exist
+        if (viewers == null || !STAGED) {
+            if (viewers != null) {
+                for (EntityPlayer player : world.playerEntities) {
+                    LightQueue.flushArea(world, (int) player.posX >> 4, (int) player.posZ >> 4, MathHelper.clamp(radius, 3, 32));
+                }
+            }
+            super.setPlayerViewRadius(radius);
+            return;
+        }
+        radius = MathHelper.clamp(radius, 3, 32);
+        if (radius == getViewRadius()) {
+            return;
+        }
+        try {
+            VIEW_RADIUS.setInt(this, radius);
+        } catch (IllegalAccessException e) {
+            Workshop.LOGGER.warn("Unable to change the view radius of dimension {}", world.provider.getDimension(), e);
+            return;
+        }
+        for (Map.Entry<EntityPlayerMP, Viewer> viewer : viewers.entrySet()) {
+            retarget(viewer.getKey(), viewer.getValue());
+        }
+        markSortPending();
+    }
+
+    /** Leaves the chunks now out of view and queues the ones the player does not watch yet. */
+    private void retarget(EntityPlayerMP player, Viewer viewer) {
+        int centerX = (int) player.posX >> 4;
+        int centerZ = (int) player.posZ >> 4;
+        int radius = getViewRadius();
+        LongIterator iterator = viewer.joined.iterator();
+        while (iterator.hasNext()) {
+            long key = iterator.nextLong();
+            int x = (int) key;
+            int z = (int) (key >> 32);
+            if (Math.abs(x - centerX) > radius || Math.abs(z - centerZ) > radius) {
+                iterator.remove();
+                PlayerChunkMapEntry entry = getEntry(x, z);
+                if (entry != null) {
+                    entry.removePlayer(player);
+                }
+            }
+        }
+        viewer.pending.clear();
+        for (int x = centerX - radius; x <= centerX + radius; x++) {
+            for (int z = centerZ - radius; z <= centerZ + radius; z++) {
+                long key = ChunkPos.asLong(x, z);
+                if (!viewer.joined.contains(key)) {
+                    viewer.pending.add(key);
+                }
+            }
+        }
+    }
+
+    /** Joins each player to its most wanted queued chunks, within its budget. */
+    private void joinPending() {
+        int rate = WorkshopConfig.network.chunkSendsPerSecond;
+        for (Map.Entry<EntityPlayerMP, Viewer> next : viewers.entrySet()) {
+            EntityPlayerMP player = next.getKey();
+            Viewer viewer = next.getValue();
+            if (viewer.pending.isEmpty()) {
+                continue;
+            }
+            int budget = viewer.pending.size();
+            if (rate > 0) {
+                viewer.tokens = Math.min(viewer.tokens + rate / 20.0, Math.max(1, rate / 4.0));
+                budget = Math.min(budget, (int) viewer.tokens);
+            }
+            Channel channel = player.connection == null ? null : player.connection.netManager.channel();
+            if (channel != null && !channel.isWritable()) {
+                writeStalls.increment();
+                continue;
+            }
+            if (budget <= 0) {
+                continue;
+            }
+            long[] wanted = viewer.prioritize(player);
+            for (int i = 0; i < budget; i++) {
+                long key = viewer.keys[(int) (wanted[i] & Viewer.INDEX_MASK)];
+                PlayerChunkMapEntry entry = getOrCreateEntry((int) key, (int) (key >> 32));
+                if (entry == null) {
+                    break;
+                }
+                // Sends the chunk right away if it is already loaded and sent to others, or later this tick
+                LightQueue.flushChunk(world, (int) key, (int) (key >> 32));
+                entry.addPlayer(player);
+                viewer.pending.remove(key);
+                viewer.joined.add(key);
+                viewer.tokens--;
+                chunksJoined.increment();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<EntityPlayerMP> players() {
+        try {
+            return (List<EntityPlayerMP>) PLAYERS.get(this);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private int getViewRadius() {
+        try {
+            return VIEW_RADIUS.getInt(this);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** View radius when it cannot be read from the map, the map follows the server's view distance. */
+    private int fallbackViewRadius() {
+        return MathHelper.clamp(world.getMinecraftServer().getPlayerList().getViewDistance(), 3, 32);
+    }
+
+    private PlayerChunkMapEntry getOrCreateEntry(int x, int z) {
+        try {
+            return (PlayerChunkMapEntry) GET_OR_CREATE_ENTRY.invoke(this, x, z);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            Workshop.LOGGER.warn("Unable to create the chunk map entry of [{}, {}]", x, z, e);
+            return null;
+        }
+    }
+
+    private void markSortPending() {
+        if (MARK_SORT_PENDING != null) {
+            try {
+                MARK_SORT_PENDING.invoke(this);
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                Workshop.LOGGER.warn("Unable to sort the pending chunks of dimension {}", world.provider.getDimension(), e);
+            }
+        }
+    }
+
+    @Override
+    public void markBlockForUpdate(BlockPos pos) {
+        int chunkX = pos.getX() >> 4;
+        int chunkZ = pos.getZ() >> 4;
+        PlayerChunkMapEntry entry = getEntry(chunkX, chunkZ);
+        if (entry == null || !entry.isSentToPlayers() || pos.getY() < 0 || pos.getY() >= 256) {
+            return;
+        }
+        long key = ChunkPos.asLong(chunkX, chunkZ);
+        Changes chunkChanges = changes.get(key);
+        if (chunkChanges == null) {
+            chunkChanges = new Changes(ticks);
+            changes.put(key, chunkChanges);
+        }
+        chunkChanges.add(pos.getX() & 15, pos.getY(), pos.getZ() & 15);
+    }
+
+    @Override
+    public void tick() {
+        // Before vanilla's tick, so new entries are loaded and sent this tick
+        joinPending();
+        super.tick();
+        ticks++;
+        int delay = WorkshopConfig.network.blockChangeDelayTicks;
+        ObjectIterator<Long2ObjectLinkedOpenHashMap.Entry<Changes>> iterator = changes.long2ObjectEntrySet().fastIterator();
+        while (iterator.hasNext()) {
+            Long2ObjectLinkedOpenHashMap.Entry<Changes> next = iterator.next();
+            Changes chunkChanges = next.getValue();
+            // Oldest first, so the first chunk still within its delay ends the pass
+            if (ticks - chunkChanges.firstTick <= delay) {
+                break;
+            }
+            iterator.remove();
+            long key = next.getLongKey();
+            PlayerChunkMapEntry entry = getEntry((int) key, (int) (key >> 32));
+            if (entry != null && entry.isSentToPlayers() && entry.getChunk() != null) {
+                send(entry, entry.getChunk(), chunkChanges);
+            }
+        }
+    }
+
+    private void send(PlayerChunkMapEntry entry, Chunk chunk, Changes chunkChanges) {
+        if (chunkChanges.total >= ForgeModContainer.clumpingThreshold) {
+            vanillaResends.increment();
+        }
+        if (chunkChanges.total == 1) {
+            BitSet section = chunkChanges.sections[Integer.numberOfTrailingZeros(chunkChanges.touched)];
+            BlockPos pos = position(chunk, Integer.numberOfTrailingZeros(chunkChanges.touched), section.nextSetBit(0));
+            entry.sendPacket(new SPacketBlockChange(world, pos));
+            sendBlockEntity(entry, pos);
+            singles.increment();
+            return;
+        }
+
+        int threshold = WorkshopConfig.network.sectionResendThreshold;
+        int resendMask = 0;
+        int deltaCount = 0;
+        for (int y = 0; y < 16; y++) {
+            if ((chunkChanges.touched & 1 << y) == 0) {
+                continue;
+            }
+            if (chunkChanges.counts[y] >= threshold) {
+                resendMask |= 1 << y;
+            } else {
+                deltaCount += chunkChanges.counts[y];
+            }
+        }
+        if (resendMask != 0) {
+            LightQueue.flushChunk(world, chunk.x, chunk.z);
+            entry.sendPacket(new SPacketChunkData(chunk, resendMask));
+            sectionResends.add(Integer.bitCount(resendMask));
+        }
+        if (deltaCount > 0) {
+            short[] offsets = new short[deltaCount];
+            int i = 0;
+            for (int y = 0; y < 16; y++) {
+                if ((chunkChanges.touched & 1 << y) == 0 || (resendMask & 1 << y) != 0) {
+                    continue;
+                }
+                BitSet section = chunkChanges.sections[y];
+                for (int index = section.nextSetBit(0); index >= 0; index = section.nextSetBit(index + 1)) {
+                    // Vanilla layout: x << 12 | z << 8 | y
+                    offsets[i++] = (short) ((index & 15) << 12 | (index >> 4 & 15) << 8 | y << 4 | index >> 8);
+                }
+            }
+            entry.sendPacket(new SPacketMultiBlockChange(deltaCount, offsets, chunk));
+            multis.increment();
+            for (short offset : offsets) {
+                sendBlockEntity(entry, new BlockPos((chunk.x << 4) + (offset >> 12 & 15), offset & 255, (chunk.z << 4) + (offset >> 8 & 15)));
+            }
+        }
+    }
+
+    /** Index within a section is x | z << 4 | y << 8, as in BlockStateContainer. */
+    private static BlockPos position(Chunk chunk, int sectionY, int index) {
+        return new BlockPos((chunk.x << 4) + (index & 15), (sectionY << 4) + (index >> 8), (chunk.z << 4) + (index >> 4 & 15));
+    }
+
+    private void sendBlockEntity(PlayerChunkMapEntry entry, BlockPos pos) {
+        IBlockState state = world.getBlockState(pos);
+        if (state.getBlock().hasTileEntity(state)) {
+            TileEntity tileEntity = world.getTileEntity(pos);
+            if (tileEntity != null) {
+                Packet<?> packet = tileEntity.getUpdatePacket();
+                if (packet != null) {
+                    entry.sendPacket(packet);
+                }
+            }
+        }
+    }
+
+    public static String describe() {
+        return String.format("%d single changes, %d multi block changes, %d sections resent, %d chunks over Forge's clumping threshold, "
+                        + "%d chunks joined, %d joins held back by full connections",
+                singles.sum(), multis.sum(), sectionResends.sum(), vanillaResends.sum(), chunksJoined.sum(), writeStalls.sum());
+    }
+
+    private static final class Viewer {
+
+        static final int INDEX_BITS = 20;
+        static final long INDEX_MASK = (1L << INDEX_BITS) - 1;
+
+        final LongOpenHashSet joined = new LongOpenHashSet();
+        final LongOpenHashSet pending = new LongOpenHashSet();
+        double tokens = Math.max(1, WorkshopConfig.network.chunkSendsPerSecond / 4.0);
+        long[] keys;
+
+        /** Returns the pending chunks as weight << INDEX_BITS | index into keys, most wanted first. */
+        long[] prioritize(EntityPlayerMP player) {
+            keys = pending.toLongArray();
+            long[] wanted = new long[keys.length];
+            int centerX = (int) player.posX >> 4;
+            int centerZ = (int) player.posZ >> 4;
+            float yaw = player.rotationYaw * 0.017453292F;
+            double lookX = -MathHelper.sin(yaw);
+            double lookZ = MathHelper.cos(yaw);
+            for (int i = 0; i < keys.length; i++) {
+                int dx = (int) keys[i] - centerX;
+                int dz = (int) (keys[i] >> 32) - centerZ;
+                double distance = dx * dx + dz * dz;
+                double weight = distance;
+                if (distance > 2) {
+                    weight *= 1 - VIEW_BIAS * (dx * lookX + dz * lookZ) / Math.sqrt(distance);
+                }
+                wanted[i] = (long) (weight * 16) << INDEX_BITS | i;
+            }
+            Arrays.sort(wanted);
+            return wanted;
+        }
+    }
+
+    private static final class Changes {
+
+        final int firstTick;
+        final BitSet[] sections = new BitSet[16];
+        final int[] counts = new int[16];
+        int touched;
+        int total;
+
+        Changes(int firstTick) {
+            this.firstTick = firstTick;
+        }
+
+        void add(int x, int y, int z) {
+            int sectionY = y >> 4;
+            BitSet section = sections[sectionY];
+            if (section == null) {
+                section = new BitSet(4096);
+                sections[sectionY] = section;
+                touched |= 1 << sectionY;
+            }
+            int index = x | z << 4 | (y & 15) << 8;
+            if (!section.get(index)) {
+                section.set(index);
+                counts[sectionY]++;
+                total++;
+            }
+        }
+    }
+
+    /** Swaps the plain vanilla player chunk map of a server world, leaving maps installed by other mods alone. */
+    @SubscribeEvent(priority = EventPriority.HIGH)
+    public static void onWorldLoad(WorldEvent.Load event) {
+        if (!(event.getWorld() instanceof WorldServer)) {
+            return;
+        }
+        WorldServer world = (WorldServer) event.getWorld();
+        if (world.getPlayerChunkMap().getClass() != PlayerChunkMap.class) {
+            return;
+        }
+        if (!Reflection.setField(WorldServer.class, world, new WorkshopPlayerChunkMap(world), "playerChunkMap", "field_73063_M")) {
+            Workshop.LOGGER.warn("Could not install the Workshop player chunk map in dimension {}", world.provider.getDimension());
+        }
+    }
+}